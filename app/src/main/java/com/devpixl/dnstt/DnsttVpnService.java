@@ -11,29 +11,43 @@ import android.net.VpnService;
 import android.os.Build;
 import android.os.ParcelFileDescriptor;
 import android.os.PowerManager;
+import android.os.SystemClock;
 import android.util.Log;
 
 import androidx.core.app.NotificationCompat;
 
+import com.devpixl.dnstt.net.BufferPool;
+import com.devpixl.dnstt.net.DnsCache;
+import com.devpixl.dnstt.net.DnsPipe;
+import com.devpixl.dnstt.net.DnsProber;
+import com.devpixl.dnstt.net.FakeDns;
+import com.devpixl.dnstt.net.FlowTable;
+import com.devpixl.dnstt.net.PacketDispatcher;
 import com.devpixl.dnstt.net.PacketHeaders;
+import com.devpixl.dnstt.net.PacketView;
+import com.devpixl.dnstt.net.PacketWriter;
+import com.devpixl.dnstt.net.ResolverPool;
+import com.devpixl.dnstt.net.Socks5Client;
+import com.devpixl.dnstt.net.SocksRelay;
 import com.devpixl.dnstt.net.TcpConnection;
+import com.devpixl.dnstt.net.TimingWheel;
+import com.devpixl.dnstt.net.TunWriter;
+import com.devpixl.dnstt.net.TunnelBalancer;
+import com.devpixl.dnstt.net.TunnelMetrics;
+import com.devpixl.dnstt.net.UdpRejectPolicy;
+import com.devpixl.dnstt.net.UdpRelay;
 
 import java.io.BufferedReader;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.nio.ByteBuffer;
-import java.util.Timer;
-import java.util.TimerTask;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 public class DnsttVpnService extends VpnService {
@@ -41,6 +55,22 @@ public class DnsttVpnService extends VpnService {
     private static final String TAG = "DnsttVpnService";
     private static final String VPN_CHANNEL_ID = "dnstt_vpn_channel";
     private static final int NOTIFICATION_ID = 1;
+    private static final int VPN_MTU = 1280;
+    // The TUN reader keeps a core for itself
+    private static final int PACKET_LANES = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() - 1));
+    private static final int LANE_QUEUE_CAPACITY = 256;
+    // How long stopVpn waits for each lane to finish its current packet
+    private static final long LANE_STOP_TIMEOUT_MS = 1000;
+    private static final int TUN_QUEUE_CAPACITY = 1024;
+    private static final long TIMER_TICK_MS = 10;
+    private static final long UDP_EXPIRY_INTERVAL_MS = 15000;
+    private static final int MAX_DNSTT_INSTANCES = 8;
+    private static final long RESOLVER_CHECK_INTERVAL_MS = 20000;
+    private static final int RESOLVER_PROBE_TIMEOUT_MS = 3000;
+    // An instance is ready on its "begin session" line; failing that, once its port answers after the wait
+    private static final long SESSION_LINE_WAIT_MS = 2000;
+    private static final long READY_TIMEOUT_MS = 15000;
+    private static final int PORT_PROBE_TIMEOUT_MS = 250;
 
     public static boolean isServiceRunning = false;
     // [FIX] Added static log buffer so MainActivity can read history
@@ -49,20 +79,53 @@ public class DnsttVpnService extends VpnService {
     // Config
     private String proxyHost = "127.0.0.1";
     private int proxyPort = 1080;
+    private int dnsttInstances = 1;
     private String transportDns = "8.8.8.8";
     private String internalDns = "8.8.8.8";
+    private int dnsCacheKb = 1024;
+    private boolean fakeIp = false;
+    private String rejectUdpPorts = UdpRejectPolicy.DEFAULT_PORTS;
+    private boolean relayUdp = false;
+    private boolean rejectIpv6 = false;
+    private boolean pipelinedSocks = true;
 
     // State
     private AtomicBoolean isRunning = new AtomicBoolean(false);
     private ParcelFileDescriptor vpnInterface;
-    private Process proxyProcess;
+    // One slot per tunnel instance, with the resolver it runs on; guarded by proxyProcesses
+    private final Process[] proxyProcesses = new Process[MAX_DNSTT_INSTANCES];
+    private final String[] instanceResolvers = new String[MAX_DNSTT_INSTANCES];
+    private TunnelBalancer tunnels;
+    private ResolverPool resolverPool;
+    private Thread resolverMonitor;
+    private String dnsttBinaryPath;
+    private File dnsttKeyFile;
+    private String dnsttDomain;
+    // When connect was pressed, for the time to first byte
+    private long connectStartedAt;
+    private final AtomicBoolean firstByteSeen = new AtomicBoolean();
+    private volatile long firstByteMillis = -1;
 
     private PowerManager.WakeLock wakeLock;
-    private ExecutorService dnsThreadPool;
-    private Timer connectionCleaner;
+    // Read by the packet lanes; stopVpn stops the lanes before clearing these
+    private volatile TimingWheel timingWheel;
+    private TimingWheel.Timeout udpExpiry;
+    private BufferPool packetPool;
+    private volatile SocksRelay socksRelay;
+    private volatile DnsPipe dnsPipe;
+    private DnsCache dnsCache;
+    private FakeDns fakeDns;
+    private UdpRejectPolicy udpRejectPolicy;
+    private volatile UdpRelay udpRelay;
+    private volatile PacketDispatcher packetDispatcher;
+    private TunWriter tunWriter;
 
     // TCP State Management
-    private ConcurrentHashMap<String, TcpConnection> tcpConnections = new ConcurrentHashMap<>();
+    private final FlowTable<TcpConnection> tcpConnections = new FlowTable<>(FlowTable.IPV4_KEY_WORDS);
+    private final FlowTable<TcpConnection> tcp6Connections = new FlowTable<>(FlowTable.IPV6_KEY_WORDS);
+    // Lookup keys, one pair per packet lane
+    private final int[][] flowKeys = new int[PACKET_LANES][FlowTable.IPV4_KEY_WORDS];
+    private final int[][] flowKeys6 = new int[PACKET_LANES][FlowTable.IPV6_KEY_WORDS];
 
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
@@ -70,12 +133,22 @@ public class DnsttVpnService extends VpnService {
 
         if ("STOP".equals(intent.getAction())) {
             stopVpn();
+            // Nothing to stop if the VPN wasn't running, but the service still has to go
+            stopSelf();
             return START_NOT_STICKY;
         }
 
         String domain = intent.getStringExtra("domain");
         String pubKey = intent.getStringExtra("key");
         String dns = intent.getStringExtra("dns");
+        dnsCacheKb = intent.getIntExtra("dns_cache_kb", dnsCacheKb);
+        fakeIp = intent.getBooleanExtra("fake_ip", fakeIp);
+        if (intent.hasExtra("reject_udp_ports")) rejectUdpPorts = intent.getStringExtra("reject_udp_ports");
+        relayUdp = intent.getBooleanExtra("relay_udp", relayUdp);
+        rejectIpv6 = intent.getBooleanExtra("reject_ipv6", rejectIpv6);
+        pipelinedSocks = intent.getBooleanExtra("pipelined_socks", pipelinedSocks);
+        connectStartedAt = intent.getLongExtra("connect_time", SystemClock.elapsedRealtime());
+        dnsttInstances = Math.max(1, Math.min(MAX_DNSTT_INSTANCES, intent.getIntExtra("dnstt_instances", dnsttInstances)));
 
         if (dns != null && !dns.isEmpty()) {
             this.transportDns = dns;
@@ -86,12 +159,14 @@ public class DnsttVpnService extends VpnService {
     }
 
     private void startVpn(String domain, String pubKey) {
-        if (isRunning.get()) return;
-        isRunning.set(true);
+        if (!isRunning.compareAndSet(false, true)) return;
         isServiceRunning = true;
 
         // [FIX] Clear old logs on new run
         logBuffer.setLength(0);
+        firstByteSeen.set(false);
+        firstByteMillis = -1;
+        TunnelMetrics.REGISTRY.reset();
 
         PowerManager pm = (PowerManager) getSystemService(Context.POWER_SERVICE);
         if (pm != null) {
@@ -99,15 +174,20 @@ public class DnsttVpnService extends VpnService {
             wakeLock.acquire();
         }
 
-        dnsThreadPool = Executors.newFixedThreadPool(50);
-
-        connectionCleaner = new Timer();
-        connectionCleaner.schedule(new TimerTask() {
-            @Override
-            public void run() {
-                cleanupStaleConnections();
-            }
-        }, 60000, 60000);
+        // Every timer runs on one wheel: idle timeouts, TIME_WAIT, retransmits and DNS query expiry
+        timingWheel = new TimingWheel(TIMER_TICK_MS);
+        timingWheel.start();
+        // One buffer holds an MSS worth of payload behind room for the larger IPv6 headers
+        packetPool = new BufferPool(PacketWriter.HEADER_ROOM + VPN_MTU
+                - PacketWriter.IPV4_HEADER_SIZE - PacketWriter.TCP_HEADER_SIZE, 256);
+        dnsCache = new DnsCache(dnsCacheKb * 1024L, this::refreshDnsEntry);
+        fakeDns = fakeIp ? new FakeDns(FakeDns.DEFAULT_NETWORK, FakeDns.DEFAULT_PREFIX_LENGTH, 65536) : null;
+        try {
+            udpRejectPolicy = UdpRejectPolicy.parse(rejectUdpPorts);
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, e.getMessage() + ", rejecting UDP on " + UdpRejectPolicy.DEFAULT_PORTS + " only");
+            udpRejectPolicy = UdpRejectPolicy.parse(UdpRejectPolicy.DEFAULT_PORTS);
+        }
 
         createNotificationChannel();
 
@@ -122,7 +202,22 @@ public class DnsttVpnService extends VpnService {
 
         new Thread(() -> {
             try {
-                startDnsttBinary(domain, pubKey, transportDns);
+                // A couple of selector threads carry every SOCKS connection
+                socksRelay = new SocksRelay(Math.min(2, Runtime.getRuntime().availableProcessors()), packetPool);
+                socksRelay.setPipelinedHandshake(pipelinedSocks);
+                socksRelay.start();
+                // One dnstt client per instance, on consecutive local ports
+                tunnels = new TunnelBalancer(proxyHost, proxyPort, dnsttInstances);
+                for (int i = 0; i < tunnels.size(); i++) {
+                    TunnelBalancer.Instance instance = tunnels.instance(i);
+                    socksRelay.enableConnectionPool(new InetSocketAddress(instance.host, instance.port));
+                }
+                // Lookups share a couple of long-lived DNS-over-TCP connections per instance
+                dnsPipe = new DnsPipe(socksRelay, tunnels, internalDns, timingWheel, 2);
+
+                resolverPool = new ResolverPool(ResolverPool.parse(transportDns),
+                        new DnsProber(domain, RESOLVER_PROBE_TIMEOUT_MS));
+                startDnsttBinaries(domain, pubKey);
 
                 if (!establishVpnInterface()) {
                     sendLog("Error: Failed to establish VPN interface");
@@ -134,6 +229,12 @@ public class DnsttVpnService extends VpnService {
                 updateNotification("Connected to " + domain);
                 sendStatus(true);
 
+                if (resolverPool.size() > 1) {
+                    resolverMonitor = new Thread(this::monitorResolvers, "ResolverMonitor");
+                    resolverMonitor.setDaemon(true);
+                    resolverMonitor.start();
+                }
+
                 runVpnLoop();
 
             } catch (Exception e) {
@@ -144,16 +245,11 @@ public class DnsttVpnService extends VpnService {
         }).start();
     }
 
-    private void cleanupStaleConnections() {
-        long now = System.currentTimeMillis();
-        long timeout = 60000;
-        tcpConnections.entrySet().removeIf(entry -> {
-            boolean idle = (now - entry.getValue().lastActivity) > timeout;
-            if (idle) {
-                entry.getValue().close();
-            }
-            return idle;
-        });
+    private void expireUdpSessions() {
+        UdpRelay relay = udpRelay;
+        if (relay == null) return;
+        relay.expireIdle(System.currentTimeMillis());
+        udpExpiry.schedule(UDP_EXPIRY_INTERVAL_MS);
     }
 
     private boolean establishVpnInterface() {
@@ -169,7 +265,7 @@ public class DnsttVpnService extends VpnService {
             } catch (IllegalArgumentException ignored) {}
 
             builder.addDnsServer(internalDns);
-            builder.setMtu(1280);
+            builder.setMtu(VPN_MTU);
             builder.setBlocking(true);
 
             if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
@@ -184,46 +280,218 @@ public class DnsttVpnService extends VpnService {
         }
     }
 
-    private void startDnsttBinary(String domain, String pubKey, String dnsAddr) throws Exception {
-        File keyFile = new File(getCacheDir(), "pub.key");
-        try (FileOutputStream fos = new FileOutputStream(keyFile)) {
+    /** Starts one client per tunnel instance, handing out the resolvers in turn. */
+    private void startDnsttBinaries(String domain, String pubKey) throws Exception {
+        if (resolverPool.size() == 0) throw new IOException("No DNS resolver given");
+        dnsttDomain = domain;
+        dnsttKeyFile = new File(getCacheDir(), "pub.key");
+        try (FileOutputStream fos = new FileOutputStream(dnsttKeyFile)) {
             fos.write(pubKey.getBytes());
         }
 
-        String binaryPath = getApplicationInfo().nativeLibraryDir + "/libdnstt.so";
-        File binary = new File(binaryPath);
+        dnsttBinaryPath = getApplicationInfo().nativeLibraryDir + "/libdnstt.so";
+        File binary = new File(dnsttBinaryPath);
 
         if (!binary.exists()) {
-            throw new IOException("Binary not found at " + binaryPath);
+            throw new IOException("Binary not found at " + dnsttBinaryPath);
         }
 
         // System usually handles permissions for nativeLibraryDir, but we set it just in case
         binary.setExecutable(true);
 
+        // No waiting here: the TUN comes up meanwhile and early flows are held until an instance is ready
+        for (int i = 0; i < tunnels.size(); i++) {
+            startDnsttInstance(i, resolverPool.resolver(i % resolverPool.size()));
+        }
+    }
+
+    private void startDnsttInstance(int index, String dnsAddr) throws IOException {
+        TunnelBalancer.Instance instance = tunnels.instance(index);
         String[] cmd = {
-            binaryPath,
+            dnsttBinaryPath,
             "-udp", dnsAddr,
-            "-pubkey-file", keyFile.getAbsolutePath(),
-            domain,
-            proxyHost + ":" + proxyPort
+            "-pubkey-file", dnsttKeyFile.getAbsolutePath(),
+            dnsttDomain,
+            instance.host + ":" + instance.port
         };
 
-        sendLog("Executing binary with DNS: " + dnsAddr);
+        String tag = tunnels.size() == 1 ? "DNSTT" : "DNSTT[" + index + "]";
+        sendLog("Executing binary with DNS: " + dnsAddr + (tunnels.size() == 1 ? "" : " on port " + instance.port));
         ProcessBuilder pb = new ProcessBuilder(cmd);
         pb.redirectErrorStream(true);
-        proxyProcess = pb.start();
+        long startedAt = SystemClock.elapsedRealtime();
+        tunnels.markStarting(index);
+        Process process = pb.start();
+        synchronized (proxyProcesses) {
+            proxyProcesses[index] = process;
+            instanceResolvers[index] = dnsAddr;
+        }
 
         new Thread(() -> {
-            try (BufferedReader reader = new BufferedReader(new InputStreamReader(proxyProcess.getInputStream()))) {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
                 String line;
                 while ((line = reader.readLine()) != null) {
                     if (line.contains("pubkey")) continue;
-                    sendLog("DNSTT: " + line);
+                    sendLog(tag + ": " + line);
+                    if (!instance.isReady() && line.contains("begin session")) {
+                        markInstanceReady(index, tag, startedAt, "session up");
+                    }
                 }
             } catch (Exception ignored) {}
+            synchronized (proxyProcesses) {
+                // Replaced on purpose by a restart; the new process owns the slot
+                if (proxyProcesses[index] != process) return;
+            }
+            // Output ends when the process does; stop sending it work
+            tunnels.markDead(index);
+            if (!isRunning.get()) return;
+            try {
+                sendLog(tag + " exited with code " + process.waitFor() + ", "
+                        + tunnels.aliveCount() + " of " + tunnels.size() + " instances left");
+            } catch (InterruptedException ignored) {}
         }).start();
+        new Thread(() -> watchReadiness(index, process, tag, startedAt)).start();
+    }
+
+    // Fallback for a client that never logs its session: ready once its SOCKS port answers
+    private void watchReadiness(int index, Process process, String tag, long startedAt) {
+        TunnelBalancer.Instance instance = tunnels.instance(index);
+        try {
+            Thread.sleep(SESSION_LINE_WAIT_MS);
+            while (!instance.isReady() && isRunning.get()) {
+                synchronized (proxyProcesses) {
+                    if (proxyProcesses[index] != process) return;
+                }
+                if (SystemClock.elapsedRealtime() - startedAt > READY_TIMEOUT_MS) {
+                    markInstanceReady(index, tag, startedAt, "no sign of a session, trying anyway");
+                    return;
+                }
+                // An accepted probe costs one empty stream through the tunnel
+                try (Socket probe = new Socket()) {
+                    probe.connect(new InetSocketAddress(instance.host, instance.port), PORT_PROBE_TIMEOUT_MS);
+                    markInstanceReady(index, tag, startedAt, "port open");
+                    return;
+                } catch (IOException e) {
+                    Thread.sleep(100);
+                }
+            }
+        } catch (InterruptedException ignored) {}
+    }
+
+    private void markInstanceReady(int index, String tag, long startedAt, String reason) {
+        int held = tunnels.markReady(index);
+        if (held < 0) return;
+        sendLog(tag + " ready after " + (SystemClock.elapsedRealtime() - startedAt) + " ms (" + reason + ")"
+                + (held > 0 ? ", " + held + " held connects released" : ""));
+    }
 
-        Thread.sleep(1000);
+    private void reportFirstByte() {
+        if (firstByteSeen.compareAndSet(false, true)) {
+            firstByteMillis = SystemClock.elapsedRealtime() - connectStartedAt;
+            sendLog("First byte through the tunnel " + firstByteMillis + " ms after connect");
+        }
+    }
+
+    // What the components already count, read only when a snapshot is taken
+    private void registerGauges() {
+        TunWriter writer = tunWriter;
+        PacketDispatcher dispatcher = packetDispatcher;
+        DnsCache cache = dnsCache;
+        TunnelBalancer balancer = tunnels;
+        TunnelMetrics.REGISTRY.gauge("tun.packets_out", writer::packetsWritten);
+        TunnelMetrics.REGISTRY.gauge("tun.bytes_out", writer::bytesWritten);
+        TunnelMetrics.REGISTRY.gauge("tun.write_queue_depth", writer::queueDepth);
+        TunnelMetrics.REGISTRY.gauge("tun.write_queue_max_depth", writer::maxQueueDepth);
+        TunnelMetrics.REGISTRY.gauge("tun.write_drops", writer::packetsDropped);
+        TunnelMetrics.REGISTRY.gauge("lanes.drops", () -> {
+            long dropped = 0;
+            for (int i = 0; i < dispatcher.laneCount(); i++) dropped += dispatcher.dropped(i);
+            return dropped;
+        });
+        TunnelMetrics.REGISTRY.gauge("tcp.active_flows", () -> tcpConnections.size() + tcp6Connections.size());
+        TunnelMetrics.REGISTRY.gauge("dns.cache_hits", cache::hits);
+        TunnelMetrics.REGISTRY.gauge("dns.cache_misses", cache::misses);
+        TunnelMetrics.REGISTRY.gauge("dns.cache_hit_percent", () -> {
+            long hits = cache.hits(), lookups = hits + cache.misses();
+            return lookups == 0 ? 0 : hits * 100 / lookups;
+        });
+        TunnelMetrics.REGISTRY.gauge("tunnel.instances_alive", balancer::aliveCount);
+        TunnelMetrics.REGISTRY.gauge("tunnel.first_byte_ms", () -> firstByteMillis);
+    }
+
+    // Every interval: probe the resolvers, fold in what each instance's DNS saw, and move instances off bad ones
+    private void monitorResolvers() {
+        long[] lastAnswers = new long[tunnels.size()];
+        long[] lastAnswerMillis = new long[tunnels.size()];
+        long[] lastLosses = new long[tunnels.size()];
+        ArrayList<String> inUse = new ArrayList<>();
+        while (isRunning.get()) {
+            try {
+                Thread.sleep(RESOLVER_CHECK_INTERVAL_MS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            resolverPool.probeAll();
+
+            String[] current = new String[tunnels.size()];
+            synchronized (proxyProcesses) {
+                System.arraycopy(instanceResolvers, 0, current, 0, current.length);
+            }
+            for (int i = 0; i < current.length; i++) {
+                TunnelBalancer.Instance instance = tunnels.instance(i);
+                long answers = instance.answers(), answerMillis = instance.answerMillis(), losses = instance.losses();
+                resolverPool.recordTunnel(current[i], answers - lastAnswers[i],
+                        answerMillis - lastAnswerMillis[i], losses - lastLosses[i]);
+                lastAnswers[i] = answers;
+                lastAnswerMillis[i] = answerMillis;
+                lastLosses[i] = losses;
+            }
+
+            for (int i = 0; i < current.length && isRunning.get(); i++) {
+                inUse.clear();
+                for (int j = 0; j < current.length; j++) {
+                    if (j != i) inUse.add(current[j]);
+                }
+                // A dead instance is brought back on the best free resolver, even its old one
+                String replacement;
+                if (tunnels.instance(i).isAlive()) {
+                    replacement = resolverPool.replacementFor(current[i], inUse);
+                } else {
+                    replacement = resolverPool.best(inUse);
+                    if (replacement == null) replacement = resolverPool.best(Collections.<String>emptySet());
+                }
+                if (replacement == null) continue;
+                sendLog("Resolvers: " + resolverPool.describe());
+                sendLog((tunnels.size() == 1 ? "DNSTT" : "DNSTT[" + i + "]")
+                        + (replacement.equals(current[i]) ? " restarting on " + replacement
+                                : " moving from " + current[i] + " to " + replacement));
+                try {
+                    restartDnsttInstance(i, replacement);
+                    current[i] = replacement;
+                } catch (IOException e) {
+                    sendLog("Restart failed: " + e.getMessage());
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private void restartDnsttInstance(int index, String dnsAddr) throws IOException, InterruptedException {
+        // Out of rotation first; its flows fail over as their SOCKS connections drop
+        tunnels.markDead(index);
+        Process old;
+        synchronized (proxyProcesses) {
+            old = proxyProcesses[index];
+            proxyProcesses[index] = null;
+        }
+        if (old != null) {
+            old.destroy();
+            // The new client needs the port
+            old.waitFor();
+        }
+        if (!isRunning.get()) return;
+        startDnsttInstance(index, dnsAddr);
     }
 
     private void runVpnLoop() {
@@ -231,21 +499,43 @@ public class DnsttVpnService extends VpnService {
              FileOutputStream vpnOutput = new FileOutputStream(vpnInterface.getFileDescriptor())) {
 
             ByteBuffer packet = ByteBuffer.allocate(32767);
+            PacketView view = new PacketView();
+
+            // Every thread hands its packets to the one writer instead of taking turns on the fd
+            tunWriter = new TunWriter(vpnOutput.getChannel(), packetPool, TUN_QUEUE_CAPACITY);
+            tunWriter.start();
+
+            if (relayUdp) {
+                // Other UDP rides SOCKS5 UDP ASSOCIATE; replies are written to the TUN from the relay loops
+                TunnelBalancer.Instance instance = tunnels.pick();
+                udpRelay = new UdpRelay(socksRelay, instance.host, instance.port,
+                        (buffer, length, remoteAddress, remotePort, clientAddress, clientPort) -> {
+                            PacketWriter.writeUdp(buffer, length, remoteAddress, remotePort, clientAddress, clientPort);
+                            tunWriter.write(buffer);
+                        });
+                udpExpiry = timingWheel.newTimeout(this::expireUdpSessions);
+                udpExpiry.schedule(UDP_EXPIRY_INTERVAL_MS);
+            }
+
+            // Flows are handled on worker lanes, so a slow one can't hold up the TUN reads
+            packetDispatcher = new PacketDispatcher(PACKET_LANES, LANE_QUEUE_CAPACITY, packetPool, (lane, lanePacket) -> {
+                if (lanePacket.protocol() == PacketView.PROTOCOL_TCP) {
+                    processTcpPacket(lane, lanePacket);
+                } else {
+                    processUdpPacket(lanePacket);
+                }
+            });
+            packetDispatcher.start();
+            registerGauges();
 
             while (isRunning.get()) {
                 int length = vpnInput.read(packet.array());
                 if (length > 0) {
-                    byte[] data = new byte[length];
-                    System.arraycopy(packet.array(), 0, data, 0, length);
-
-                    PacketHeaders.IPv4Header ipHeader = PacketHeaders.IPv4Header.parse(data);
-
-                    if (ipHeader != null) {
-                        if (ipHeader.protocol == 6) {
-                            processTcpPacket(ipHeader, vpnOutput);
-                        } else if (ipHeader.protocol == 17) {
-                            processUdpPacket(ipHeader, vpnOutput);
-                        }
+                    TunnelMetrics.TUN_PACKETS_IN.increment();
+                    TunnelMetrics.TUN_BYTES_IN.add(length);
+                    if (view.wrap(packet, length) && (view.protocol() == PacketView.PROTOCOL_TCP
+                            || view.protocol() == PacketView.PROTOCOL_UDP)) {
+                        packetDispatcher.dispatch(view);
                     }
                     packet.clear();
                 }
@@ -257,116 +547,226 @@ public class DnsttVpnService extends VpnService {
         }
     }
 
-    private void processTcpPacket(PacketHeaders.IPv4Header ipHeader, FileOutputStream vpnOutput) {
-        PacketHeaders.TCPHeader tcpHeader = PacketHeaders.TCPHeader.parse(ipHeader.payload);
-        if (tcpHeader == null) return;
-
-        String connectionId = ipHeader.sourceIp.getHostAddress() + ":" + tcpHeader.sourcePort +
-                              "->" + ipHeader.destinationIp.getHostAddress() + ":" + tcpHeader.destinationPort;
-
-        if (tcpHeader.isSYN() && !tcpHeader.isACK()) {
-            com.devpixl.dnstt.net.Socks5Client socksClient = new com.devpixl.dnstt.net.Socks5Client(
-                proxyHost, proxyPort,
-                ipHeader.destinationIp.getHostAddress(), tcpHeader.destinationPort
-            );
-
-            TcpConnection connection = new TcpConnection(
-                ipHeader.sourceIp, tcpHeader.sourcePort,
-                ipHeader.destinationIp, tcpHeader.destinationPort,
-                vpnOutput, socksClient
-            );
-
-            tcpConnections.put(connectionId, connection);
+    private void processTcpPacket(int lane, PacketView view) {
+        boolean ipv6 = view.isIpv6();
+        if (ipv6 && rejectIpv6) {
+            // Apps retry on IPv4 as soon as the RST arrives
+            if (view.isSYN() && !view.isACK()) resetSyn(view);
+            return;
+        }
+        int sourcePort = view.sourcePort();
+        int destinationPort = view.destinationPort();
+
+        FlowTable<TcpConnection> connections;
+        int[] key;
+        if (ipv6) {
+            connections = tcp6Connections;
+            key = FlowTable.ipv6Key(flowKeys6[lane], view.array(), view.sourceAddressOffset(), sourcePort,
+                    view.destinationAddressOffset(), destinationPort);
+        } else {
+            connections = tcpConnections;
+            key = FlowTable.ipv4Key(flowKeys[lane], view.sourceAddress(), sourcePort, view.destinationAddress(), destinationPort);
+        }
 
-            dnsThreadPool.execute(() -> {
-                if (!connection.handleSyn(tcpHeader.sequenceNumber)) {
-                    connection.close();
-                    tcpConnections.remove(connectionId);
+        if (view.isSYN() && !view.isACK()) {
+            long sequenceNumber = view.sequenceNumber();
+            TcpConnection existing = connections.get(key);
+            if (existing != null && existing.handleDuplicateSyn(sequenceNumber)) return;
+            // A new SYN on the same ports means the app gave up on the old flow; free its upstream first
+            if (existing != null) existing.close();
+
+            // Each new flow goes to the instance with the least outstanding work
+            TunnelBalancer.Instance instance = tunnels.pick();
+            Socks5Client socksClient;
+            TcpConnection connection;
+            if (ipv6) {
+                byte[] destinationAddress = view.copyDestinationAddress();
+                socksClient = new Socks5Client(socksRelay, instance.host, instance.port, destinationAddress, destinationPort);
+                connection = new TcpConnection(
+                    view.copySourceAddress(), sourcePort,
+                    destinationAddress, destinationPort,
+                    tunWriter, packetPool, socksClient, timingWheel,
+                    VPN_MTU - PacketWriter.IPV6_HEADER_SIZE - PacketWriter.TCP_HEADER_SIZE
+                );
+            } else {
+                int destinationAddress = view.destinationAddress();
+                // In fake-IP mode the server resolves the name we handed out the address for
+                if (fakeDns != null && fakeDns.isFake(destinationAddress)) {
+                    String targetHost = fakeDns.hostFor(destinationAddress);
+                    if (targetHost == null) {
+                        // Evicted or from before a restart: fail fast so the app looks the name up again
+                        resetSyn(view);
+                        return;
+                    }
+                    socksClient = new Socks5Client(socksRelay, instance.host, instance.port, targetHost, destinationPort);
+                } else {
+                    socksClient = new Socks5Client(socksRelay, instance.host, instance.port,
+                            view.copyDestinationAddress(), destinationPort);
                 }
-            });
+                connection = new TcpConnection(
+                    view.sourceAddress(), sourcePort,
+                    destinationAddress, destinationPort,
+                    tunWriter, packetPool, socksClient, timingWheel,
+                    VPN_MTU - PacketWriter.IPV4_HEADER_SIZE - PacketWriter.TCP_HEADER_SIZE
+                );
+            }
 
-        } else if (tcpConnections.containsKey(connectionId)) {
-            TcpConnection connection = tcpConnections.get(connectionId);
-            if (tcpHeader.isRST()) {
+            socksClient.setBacklogCounter(instance.outstandingBytes);
+            instance.flowOpened();
+            TunnelMetrics.TCP_FLOWS_OPENED.increment();
+            int[] connectionKey = key.clone();
+            // The flow leaves the table when it times out, fails or is done with TIME_WAIT
+            connection.onFinished = () -> {
+                instance.flowClosed();
+                connections.remove(connectionKey, connection);
+            };
+            connections.put(connectionKey, connection);
+            connection.acceptSyn(sequenceNumber, view.tcpMaxSegmentSize(), view.windowSize());
+            if (!firstByteSeen.get()) connection.onFirstData = this::reportFirstByte;
+            // Held while the instance starts up; its retransmitted SYNs are matched to this flow meanwhile
+            instance.whenReady(connection::connectUpstream);
+
+        } else {
+            TcpConnection connection = connections.get(key);
+            if (connection == null) return;
+            if (view.isRST()) {
                 connection.close();
-                tcpConnections.remove(connectionId);
-            } else if (tcpHeader.isFIN()) {
-                connection.handleFin(tcpHeader.sequenceNumber);
-                tcpConnections.remove(connectionId);
-            } else if (tcpHeader.isACK()) {
-                connection.handleAck(tcpHeader.sequenceNumber, tcpHeader.acknowledgmentNumber, tcpHeader.payload);
+            } else if (view.isFIN()) {
+                // Deliver any data and ACK riding on the FIN first
+                int payloadLength = view.payloadLength();
+                if (view.isACK()) {
+                    connection.handleAck(view.sequenceNumber(), view.acknowledgmentNumber(), view.windowSize(),
+                            view.array(), view.payloadOffset(), payloadLength);
+                }
+                connection.handleFin((view.sequenceNumber() + payloadLength) & 0xFFFFFFFFL);
+            } else if (view.isACK()) {
+                // Payload is passed as a slice of the lane's packet buffer; it is consumed before it is released
+                connection.handleAck(view.sequenceNumber(), view.acknowledgmentNumber(), view.windowSize(),
+                        view.array(), view.payloadOffset(), view.payloadLength());
             }
         }
     }
 
-    private void processUdpPacket(PacketHeaders.IPv4Header ipHeader, FileOutputStream vpnOutput) {
-        PacketHeaders.UDPHeader udpHeader = PacketHeaders.UDPHeader.parse(ipHeader.payload);
-        if (udpHeader == null) return;
-
-        if (udpHeader.destinationPort == 53) {
-            dnsThreadPool.execute(() -> {
-                try {
-                    Socket socksSocket = new Socket(proxyHost, proxyPort);
-                    socksSocket.setSoTimeout(5000);
-                    DataOutputStream out = new DataOutputStream(socksSocket.getOutputStream());
-                    DataInputStream in = new DataInputStream(socksSocket.getInputStream());
-
-                    out.write(new byte[]{0x05, 0x01, 0x00});
-                    byte[] authResp = new byte[2];
-                    in.readFully(authResp);
-                    if (authResp[0] != 0x05 || authResp[1] != 0x00) {
-                        socksSocket.close();
-                        return;
-                    }
-
-                    byte[] ipBytes = InetAddress.getByName(internalDns).getAddress();
-                    out.write(0x05);
-                    out.write(0x01);
-                    out.write(0x00);
-                    out.write(0x01);
-                    out.write(ipBytes);
-                    out.writeShort(53);
-
-                    byte[] connResp = new byte[10];
-                    in.readFully(connResp);
-                    if (connResp[1] != 0x00) {
-                        socksSocket.close();
-                        return;
-                    }
-
-                    out.writeShort(udpHeader.payload.length);
-                    out.write(udpHeader.payload);
-
-                    int respLen = in.readUnsignedShort();
-                    byte[] dnsResponse = new byte[respLen];
-                    in.readFully(dnsResponse);
+    // Refuses a connection the way a closed port would
+    private void resetSyn(PacketView view) {
+        ByteBuffer reset = packetPool.acquire();
+        long ack = (view.sequenceNumber() + 1) & 0xFFFFFFFFL;
+        int flags = PacketHeaders.TCPHeader.FLAG_RST | PacketHeaders.TCPHeader.FLAG_ACK;
+        if (view.isIpv6()) {
+            PacketWriter.writeTcp6(reset, 0, view.copyDestinationAddress(), view.destinationPort(),
+                    view.copySourceAddress(), view.sourcePort(), 0, ack, flags, 0);
+        } else {
+            PacketWriter.writeTcp(reset, 0, view.destinationAddress(), view.destinationPort(),
+                    view.sourceAddress(), view.sourcePort(), 0, ack, flags, 0);
+        }
+        tunWriter.write(reset);
+    }
 
-                    PacketHeaders.UDPHeader respUdp = new PacketHeaders.UDPHeader();
-                    respUdp.sourcePort = 53;
-                    respUdp.destinationPort = udpHeader.sourcePort;
-                    respUdp.payload = dnsResponse;
+    private void processUdpPacket(PacketView view) {
+        if (view.isIpv6() && rejectIpv6) {
+            if (view.isMulticastOrBroadcast()) {
+                udpRejectPolicy.countDropped();
+            } else {
+                ByteBuffer error = packetPool.acquire();
+                udpRejectPolicy.writeRejection(view, error);
+                tunWriter.write(error);
+            }
+        } else if (view.destinationPort() == 53) {
+            ByteBuffer cached = packetPool.acquire();
+            if (fakeDns != null) {
+                int fakeLength = fakeDns.answer(view.array(), view.payloadOffset(), view.payloadLength(), cached);
+                if (fakeLength >= 0) {
+                    writeDnsResponse(cached, fakeLength, view);
+                    return;
+                }
+            }
+            int cachedLength = dnsCache.lookup(view.array(), view.payloadOffset(), view.payloadLength(), cached);
+            if (cachedLength >= 0) {
+                writeDnsResponse(cached, cachedLength, view);
+                return;
+            }
+            packetPool.release(cached);
+
+            // The pipe copies the query out of the packet buffer before returning; the answer's
+            // addresses are captured here for the same reason
+            int clientPort = view.sourcePort();
+            DnsPipe.ResponseCallback callback;
+            if (view.isIpv6()) {
+                byte[] clientAddress = view.copySourceAddress();
+                byte[] dnsAddress = view.copyDestinationAddress();
+                callback = (response, length) -> {
+                    dnsCache.put(response.array(), response.arrayOffset() + PacketWriter.HEADER_ROOM, length);
+                    PacketWriter.writeUdp6(response, length, dnsAddress, 53, clientAddress, clientPort);
+                    tunWriter.write(response);
+                };
+            } else {
+                int clientAddress = view.sourceAddress();
+                int dnsAddress = view.destinationAddress();
+                callback = (response, length) -> {
+                    dnsCache.put(response.array(), response.arrayOffset() + PacketWriter.HEADER_ROOM, length);
+                    PacketWriter.writeUdp(response, length, dnsAddress, 53, clientAddress, clientPort);
+                    tunWriter.write(response);
+                };
+            }
+            if (!firstByteSeen.get()) {
+                DnsPipe.ResponseCallback answer = callback;
+                callback = (response, length) -> {
+                    reportFirstByte();
+                    answer.onResponse(response, length);
+                };
+            }
+            dnsPipe.query(view.array(), view.payloadOffset(), view.payloadLength(), callback);
+        } else if (udpRejectPolicy.rejects(view)) {
+            // Port unreachable makes QUIC and friends fall back to TCP now instead of after a timeout
+            ByteBuffer error = packetPool.acquire();
+            udpRejectPolicy.writeRejection(view, error);
+            tunWriter.write(error);
+        } else if (!relayUdpPacket(view)) {
+            udpRejectPolicy.countDropped();
+        }
+    }
 
-                    PacketHeaders.IPv4Header respIp = new PacketHeaders.IPv4Header();
-                    respIp.version = 4;
-                    respIp.ihl = 5;
-                    respIp.ttl = 64;
-                    respIp.protocol = 17;
-                    respIp.sourceIp = ipHeader.destinationIp;
-                    respIp.destinationIp = ipHeader.sourceIp;
-                    respIp.identification = ipHeader.identification + 1;
+    private boolean relayUdpPacket(PacketView view) {
+        // The relay and fake DNS speak IPv4 only
+        if (udpRelay == null || view.isIpv6()) return false;
+        String host = null;
+        int destinationAddress = view.destinationAddress();
+        if (fakeDns != null && fakeDns.isFake(destinationAddress)) {
+            host = fakeDns.hostFor(destinationAddress);
+            if (host == null) return false;
+        }
+        return udpRelay.send(view, host);
+    }
 
-                    byte[] rawResponse = PacketHeaders.UDPHeader.buildUdpPacket(respUdp, respIp);
+    // Popular or stale cache entries are re-resolved in the background; the answer only feeds the cache
+    private void refreshDnsEntry(byte[] query, int offset, int length) {
+        DnsPipe pipe = dnsPipe;
+        if (pipe == null) return;
+        pipe.query(query, offset, length, (response, responseLength) -> {
+            dnsCache.put(response.array(), response.arrayOffset() + PacketWriter.HEADER_ROOM, responseLength);
+            packetPool.release(response);
+        });
+    }
 
-                    synchronized (vpnOutput) {
-                        vpnOutput.write(rawResponse);
-                        vpnOutput.flush();
-                    }
-                    socksSocket.close();
+    // Answers the query in view; the response sits at HEADER_ROOM in the buffer, which is released here
+    private void writeDnsResponse(ByteBuffer response, int length, PacketView query) {
+        if (query.isIpv6()) {
+            PacketWriter.writeUdp6(response, length, query.copyDestinationAddress(), 53,
+                    query.copySourceAddress(), query.sourcePort());
+        } else {
+            PacketWriter.writeUdp(response, length, query.destinationAddress(), 53,
+                    query.sourceAddress(), query.sourcePort());
+        }
+        tunWriter.write(response);
+    }
 
-                } catch (Exception e) {
-                    Log.e(TAG, "DNS over SOCKS failed: " + e.getMessage());
-                }
-            });
+    // Emptied first, since closing a flow removes it from its table
+    private static void closeAll(FlowTable<TcpConnection> connections) {
+        ArrayList<TcpConnection> open = new ArrayList<>();
+        connections.forEach(open::add);
+        connections.clear();
+        for (TcpConnection connection : open) {
+            connection.close();
         }
     }
 
@@ -378,7 +778,8 @@ public class DnsttVpnService extends VpnService {
     }
 
     private void stopVpn() {
-        isRunning.set(false);
+        // Once only: the VPN loop's exit, a STOP, onRevoke and onDestroy may all get here
+        if (!isRunning.compareAndSet(true, false)) return;
         isServiceRunning = false;
         sendStatus(false);
         sendLog("VPN Service Stopped");
@@ -388,23 +789,78 @@ public class DnsttVpnService extends VpnService {
             wakeLock = null;
         }
 
-        if (connectionCleaner != null) {
-            connectionCleaner.cancel();
-            connectionCleaner = null;
+        // Lanes first, so no packet builds a flow on what is torn down below
+        if (packetDispatcher != null) {
+            packetDispatcher.shutdown(LANE_STOP_TIMEOUT_MS);
+            StringBuilder lanes = new StringBuilder("Packet lanes:");
+            for (int i = 0; i < packetDispatcher.laneCount(); i++) {
+                lanes.append(" [").append(packetDispatcher.dispatched(i)).append(" packets, max depth ")
+                        .append(packetDispatcher.maxQueueDepth(i)).append(", ")
+                        .append(packetDispatcher.dropped(i)).append(" dropped]");
+            }
+            sendLog(lanes.toString());
+            packetDispatcher = null;
+        }
+
+        closeAll(tcpConnections);
+        closeAll(tcp6Connections);
+        if (dnsPipe != null) {
+            dnsPipe.shutdown();
+            dnsPipe = null;
+        }
+        if (udpRelay != null) {
+            sendLog("UDP relay: " + udpRelay.datagramsSent() + " sent, " + udpRelay.datagramsReceived()
+                    + " received, " + udpRelay.datagramsDropped() + " dropped");
+            udpRelay.shutdown();
+            udpRelay = null;
+        }
+        if (socksRelay != null) {
+            socksRelay.shutdown();
+            socksRelay = null;
         }
-        if (dnsThreadPool != null) {
-            dnsThreadPool.shutdownNow();
-            dnsThreadPool = null;
+        if (timingWheel != null) {
+            timingWheel.shutdown();
+            timingWheel = null;
+        }
+        if (tunWriter != null) {
+            sendLog("TUN writer: " + tunWriter.packetsWritten() + " packets in " + tunWriter.batches()
+                    + " batches, max depth " + tunWriter.maxQueueDepth() + ", " + tunWriter.packetsDropped()
+                    + " dropped");
+            // Kept, not nulled: relay loops may still hand it a last packet
+            tunWriter.shutdown();
         }
 
-        for (TcpConnection conn : tcpConnections.values()) {
-            conn.close();
+        if (dnsCache != null) {
+            sendLog("DNS cache: " + dnsCache.hits() + " hits (" + dnsCache.staleHits() + " stale), "
+                    + dnsCache.misses() + " misses, " + dnsCache.refreshes() + " refreshes");
+        }
+        if (udpRejectPolicy != null) {
+            sendLog("UDP: " + udpRejectPolicy.rejectedPackets() + " rejected (" + udpRejectPolicy.rejectedBytes()
+                    + " bytes, by port " + udpRejectPolicy.rejectedByPort() + "), "
+                    + udpRejectPolicy.droppedPackets() + " dropped");
         }
-        tcpConnections.clear();
 
-        if (proxyProcess != null) {
-            proxyProcess.destroy();
-            proxyProcess = null;
+        if (tunnels != null && tunnels.size() > 1) {
+            StringBuilder instances = new StringBuilder("dnstt instances:");
+            for (int i = 0; i < tunnels.size(); i++) {
+                TunnelBalancer.Instance instance = tunnels.instance(i);
+                instances.append(" [port ").append(instance.port).append(", ")
+                        .append(instance.isAlive() ? "alive" : "dead").append("]");
+            }
+            sendLog(instances.toString());
+        }
+        if (resolverMonitor != null) {
+            resolverMonitor.interrupt();
+            resolverMonitor = null;
+        }
+        if (resolverPool != null && resolverPool.size() > 1) {
+            sendLog("Resolvers: " + resolverPool.describe());
+        }
+        synchronized (proxyProcesses) {
+            for (int i = 0; i < proxyProcesses.length; i++) {
+                if (proxyProcesses[i] != null) proxyProcesses[i].destroy();
+                proxyProcesses[i] = null;
+            }
         }
 
         try {
@@ -14,6 +14,10 @@ import android.graphics.drawable.GradientDrawable;
 import android.net.VpnService;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.text.InputType;
 import android.util.TypedValue;
 import android.view.Gravity;
 import android.view.Menu;
@@ -37,8 +41,11 @@ import androidx.core.app.ActivityCompat;
 import androidx.core.content.ContextCompat;
 import androidx.drawerlayout.widget.DrawerLayout;
 
+import com.devpixl.dnstt.net.Metrics;
+import com.devpixl.dnstt.net.TunnelMetrics;
 import com.google.android.material.appbar.MaterialToolbar;
 import com.google.android.material.dialog.MaterialAlertDialogBuilder;
+import com.google.android.material.materialswitch.MaterialSwitch;
 import com.google.android.material.textfield.TextInputEditText;
 import com.google.android.material.textfield.TextInputLayout;
 
@@ -55,7 +62,8 @@ public class MainActivity extends AppCompatActivity {
     private ScrollView logScrollView;
     private ImageButton btnStart;
     private TextView statusView;
-    private TextInputEditText domainInput, keyInput, dnsInput;
+    private TextInputEditText domainInput, keyInput, dnsInput, rejectUdpInput, instancesInput;
+    private MaterialSwitch fakeIpSwitch, relayUdpSwitch, rejectIpv6Switch, pipelinedSocksSwitch;
     private DrawerLayout drawerLayout;
     private ListView configListView;
     private ArrayAdapter<String> configAdapter;
@@ -63,9 +71,16 @@ public class MainActivity extends AppCompatActivity {
 
     // Status Logic Variables
     private boolean isLogsVisible = false;
+    // The status follows the tunnel's metrics: answers through it mean connected, only failures mean not
+    private static final long STATUS_POLL_MS = 1000;
+    private static final long TEST_TIMEOUT_MS = 30000;
+    private static final int FAILING_POLLS_TIMEOUT = 5;
+    private final Handler statusHandler = new Handler(Looper.getMainLooper());
+    private final Runnable statusPoll = this::pollStatus;
     private boolean isTestingPhase = false;
-    private int logBatchCount = 0;
-    private int streamLogCount = 0;
+    private long testingSince;
+    private long lastSuccesses, lastFailures;
+    private int failingPolls = 0;
 
     private static class Config {
         String name;
@@ -87,10 +102,10 @@ public class MainActivity extends AppCompatActivity {
             if ("com.devpixl.dnstt.LOG_UPDATE".equals(intent.getAction())) {
                 String logMsg = intent.getStringExtra("log");
                 log(logMsg);
-                updateStatusLogic(logMsg);
             } else if ("com.devpixl.dnstt.STATUS_UPDATE".equals(intent.getAction())) {
                 boolean running = intent.getBooleanExtra("running", false);
                 if (!running) {
+                    statusHandler.removeCallbacks(statusPoll);
                     updateUIState("Disconnected");
                 }
             }
@@ -160,13 +175,60 @@ public class MainActivity extends AppCompatActivity {
         TextInputLayout keyLayout = createInputLayout("Paste Public Key Here");
         keyInput = (TextInputEditText) keyLayout.getEditText();
 
-        TextInputLayout dnsLayout = createInputLayout("UDP DNS (e.g. 8.8.8.8:53)");
+        TextInputLayout dnsLayout = createInputLayout("UDP DNS (e.g. 8.8.8.8:53, comma separated for several)");
         dnsInput = (TextInputEditText) dnsLayout.getEditText();
         dnsInput.setText("8.8.8.8:53");
 
+        // Fake-IP: hand out placeholder addresses and let the server resolve hostnames
+        fakeIpSwitch = new MaterialSwitch(this);
+        fakeIpSwitch.setText("Fake-IP DNS (server resolves names)");
+        fakeIpSwitch.setChecked(getSharedPreferences("dnstt_prefs", MODE_PRIVATE).getBoolean("fake_ip", false));
+        fakeIpSwitch.setOnCheckedChangeListener((button, checked) ->
+                getSharedPreferences("dnstt_prefs", MODE_PRIVATE).edit().putBoolean("fake_ip", checked).apply());
+
+        // Everything else UDP (games, VoIP, NTP) over SOCKS5 UDP ASSOCIATE, if the proxy supports it
+        relayUdpSwitch = new MaterialSwitch(this);
+        relayUdpSwitch.setText("Relay other UDP (needs UDP ASSOCIATE)");
+        relayUdpSwitch.setChecked(getSharedPreferences("dnstt_prefs", MODE_PRIVATE).getBoolean("relay_udp", false));
+        relayUdpSwitch.setOnCheckedChangeListener((button, checked) ->
+                getSharedPreferences("dnstt_prefs", MODE_PRIVATE).edit().putBoolean("relay_udp", checked).apply());
+
+        // Refuse IPv6 outright so dual-stack apps fall back to IPv4 without waiting
+        rejectIpv6Switch = new MaterialSwitch(this);
+        rejectIpv6Switch.setText("Reject IPv6 (apps fall back to IPv4)");
+        rejectIpv6Switch.setChecked(getSharedPreferences("dnstt_prefs", MODE_PRIVATE).getBoolean("reject_ipv6", false));
+        rejectIpv6Switch.setOnCheckedChangeListener((button, checked) ->
+                getSharedPreferences("dnstt_prefs", MODE_PRIVATE).edit().putBoolean("reject_ipv6", checked).apply());
+
+        // Greeting and CONNECT in one write; off for proxies that drop data sent before their reply
+        pipelinedSocksSwitch = new MaterialSwitch(this);
+        pipelinedSocksSwitch.setText("Pipelined SOCKS handshake (one round trip less)");
+        pipelinedSocksSwitch.setChecked(getSharedPreferences("dnstt_prefs", MODE_PRIVATE).getBoolean("pipelined_socks", true));
+        pipelinedSocksSwitch.setOnCheckedChangeListener((button, checked) ->
+                getSharedPreferences("dnstt_prefs", MODE_PRIVATE).edit().putBoolean("pipelined_socks", checked).apply());
+
+        // UDP ports answered with port unreachable so apps drop QUIC for TCP at once
+        TextInputLayout rejectUdpLayout = createInputLayout("Reject UDP ports (e.g. 443, * for all)");
+        rejectUdpInput = (TextInputEditText) rejectUdpLayout.getEditText();
+        rejectUdpInput.setText(getSharedPreferences("dnstt_prefs", MODE_PRIVATE)
+                .getString("reject_udp_ports", "443"));
+
+        // Several dnstt clients at once, each one more resolver session's worth of throughput
+        TextInputLayout instancesLayout = createInputLayout("dnstt instances (1-8)");
+        instancesInput = (TextInputEditText) instancesLayout.getEditText();
+        instancesInput.setInputType(InputType.TYPE_CLASS_NUMBER);
+        instancesInput.setText(String.valueOf(getSharedPreferences("dnstt_prefs", MODE_PRIVATE)
+                .getInt("dnstt_instances", 1)));
+
         inputsContainer.addView(domainLayout);
         inputsContainer.addView(keyLayout);
         inputsContainer.addView(dnsLayout);
+        inputsContainer.addView(fakeIpSwitch);
+        inputsContainer.addView(relayUdpSwitch);
+        inputsContainer.addView(rejectIpv6Switch);
+        inputsContainer.addView(pipelinedSocksSwitch);
+        inputsContainer.addView(rejectUdpLayout);
+        inputsContainer.addView(instancesLayout);
 
         body.addView(inputsContainer);
 
@@ -317,14 +379,26 @@ public class MainActivity extends AppCompatActivity {
 
     private void startVpnService() {
         Intent serviceIntent = new Intent(this, DnsttVpnService.class);
+        // The service reports time to first byte from here
+        serviceIntent.putExtra("connect_time", SystemClock.elapsedRealtime());
         serviceIntent.putExtra("domain", domainInput.getText().toString());
         serviceIntent.putExtra("key", keyInput.getText().toString());
         serviceIntent.putExtra("dns", dnsInput.getText().toString());
+        serviceIntent.putExtra("fake_ip", fakeIpSwitch.isChecked());
+        serviceIntent.putExtra("relay_udp", relayUdpSwitch.isChecked());
+        serviceIntent.putExtra("reject_ipv6", rejectIpv6Switch.isChecked());
+        serviceIntent.putExtra("pipelined_socks", pipelinedSocksSwitch.isChecked());
+        String rejectUdpPorts = rejectUdpInput.getText().toString();
+        getSharedPreferences("dnstt_prefs", MODE_PRIVATE).edit().putString("reject_udp_ports", rejectUdpPorts).apply();
+        serviceIntent.putExtra("reject_udp_ports", rejectUdpPorts);
+        int instances = 1;
+        try {
+            instances = Integer.parseInt(instancesInput.getText().toString().trim());
+        } catch (NumberFormatException ignored) {}
+        getSharedPreferences("dnstt_prefs", MODE_PRIVATE).edit().putInt("dnstt_instances", instances).apply();
+        serviceIntent.putExtra("dnstt_instances", instances);
 
-        isTestingPhase = true;
-        logBatchCount = 0;
-        streamLogCount = 0;
-        updateUIState("Testing...");
+        startStatusPolling(true);
 
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
             startForegroundService(serviceIntent);
@@ -354,50 +428,69 @@ public class MainActivity extends AppCompatActivity {
         }
     }
 
-    private void updateStatusLogic(String message) {
-        if (message == null) return;
-
-        boolean isSessionStart = message.contains("begin session");
-        boolean isStreamLog = message.contains("begin stream") || message.contains("end stream");
-
-        if (isTestingPhase) {
-            if (!statusView.getText().equals("Testing...")) updateUIState("Testing...");
-
-            if (isSessionStart || isStreamLog) {
-                isTestingPhase = false;
-                logBatchCount = 0;
-                streamLogCount = 0;
-
-                if (isStreamLog) {
-                    logBatchCount = 1;
-                    streamLogCount = 1;
-                }
-            }
-            return;
+    private void startStatusPolling(boolean testing) {
+        if (testing) {
+            isTestingPhase = true;
+            testingSince = SystemClock.elapsedRealtime();
+            updateUIState("Testing...");
         }
+        // Counts from before this point don't say anything about the new session
+        Metrics.Snapshot snapshot = TunnelMetrics.REGISTRY.snapshot();
+        lastSuccesses = successes(snapshot);
+        lastFailures = failures(snapshot);
+        failingPolls = 0;
+        statusHandler.removeCallbacks(statusPoll);
+        statusHandler.postDelayed(statusPoll, STATUS_POLL_MS);
+    }
 
-        logBatchCount++;
+    // Handshakes the server answered and DNS answers that made it back
+    private static long successes(Metrics.Snapshot snapshot) {
+        return snapshot.histogram("socks.handshake_ms").count + snapshot.histogram("dns.query_ms").count;
+    }
 
-        if (isStreamLog) {
-            streamLogCount++;
-        }
+    private static long failures(Metrics.Snapshot snapshot) {
+        return snapshot.value("socks.handshake_failures") + snapshot.value("dns.queries_lost");
+    }
 
-        if (streamLogCount >= 3) {
+    private void pollStatus() {
+        // While testing the service may not be up yet; it reports a failed start itself
+        if (!DnsttVpnService.isServiceRunning && !isTestingPhase) return;
+        Metrics.Snapshot snapshot = TunnelMetrics.REGISTRY.snapshot();
+        long successes = successes(snapshot);
+        long failures = failures(snapshot);
+        // Negative after the service reset the registry; that counts as nothing new
+        boolean succeeded = successes > lastSuccesses;
+        boolean failed = failures > lastFailures;
+        lastSuccesses = successes;
+        lastFailures = failures;
+
+        if (succeeded) {
+            isTestingPhase = false;
+            failingPolls = 0;
             updateUIState("Connected");
-            logBatchCount = 0;
-            streamLogCount = 0;
-            return;
+        } else if (failed) {
+            if (++failingPolls >= FAILING_POLLS_TIMEOUT) updateUIState("Timed-out");
+        } else if (isTestingPhase && SystemClock.elapsedRealtime() - testingSince > TEST_TIMEOUT_MS) {
+            updateUIState("Timed-out");
         }
+        statusHandler.postDelayed(statusPoll, STATUS_POLL_MS);
+    }
 
-        if (logBatchCount >= 5) {
-            if (streamLogCount >= 3) {
-                updateUIState("Connected");
-            } else {
-                updateUIState("Timed-out");
-            }
-            logBatchCount = 0;
-            streamLogCount = 0;
-        }
+    private void showMetrics() {
+        String dump = TunnelMetrics.REGISTRY.snapshot().format();
+        TextView text = new TextView(this);
+        text.setText(dump.isEmpty() ? "No metrics yet" : dump);
+        text.setTypeface(Typeface.MONOSPACE);
+        text.setTextIsSelectable(true);
+        text.setPadding(50, 30, 50, 0);
+        ScrollView scroll = new ScrollView(this);
+        scroll.addView(text);
+        new MaterialAlertDialogBuilder(this)
+                .setTitle("Metrics")
+                .setView(scroll)
+                .setPositiveButton("Copy", (dialog, which) -> copyToClipboard(dump))
+                .setNegativeButton("Close", null)
+                .show();
     }
 
     @Override
@@ -424,6 +517,9 @@ public class MainActivity extends AppCompatActivity {
         } else if (id == R.id.action_export) {
             exportToClipboard();
             return true;
+        } else if (id == R.id.action_metrics) {
+            showMetrics();
+            return true;
         } else if (id == R.id.action_toggle_logs) {
             isLogsVisible = !isLogsVisible;
             logScrollView.setVisibility(isLogsVisible ? View.VISIBLE : View.GONE);
@@ -622,9 +718,7 @@ public class MainActivity extends AppCompatActivity {
 
         // [FIX] Use DnsttVpnService instead of ProxyService
         if (DnsttVpnService.isServiceRunning) {
-            if (statusView.getText().equals("Disconnected")) {
-                updateUIState("Testing...");
-            }
+            startStatusPolling(statusView.getText().equals("Disconnected"));
         } else {
             updateUIState("Disconnected");
         }
@@ -638,6 +732,7 @@ public class MainActivity extends AppCompatActivity {
     protected void onPause() {
         super.onPause();
         unregisterReceiver(logReceiver);
+        statusHandler.removeCallbacks(statusPoll);
     }
 
     private void log(String message) {
@@ -0,0 +1,35 @@
+package com.devpixl.dnstt.net;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Fixed size pool of heap packet buffers. Buffers are handed out cleared and
+ * go back with {@link #release(ByteBuffer)}; when the pool is empty a new one
+ * is allocated, and when it is full the returned buffer is left to the GC.
+ */
+public class BufferPool {
+    private final int bufferSize;
+    private final ArrayBlockingQueue<ByteBuffer> free;
+
+    public BufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.free = new ArrayBlockingQueue<>(maxPooled);
+    }
+
+    public int bufferSize() {
+        return bufferSize;
+    }
+
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = free.poll();
+        return buffer != null ? buffer : ByteBuffer.allocate(bufferSize);
+    }
+
+    public void release(ByteBuffer buffer) {
+        // Oversized one-off buffers are never pooled
+        if (buffer == null || buffer.capacity() != bufferSize) return;
+        buffer.clear();
+        free.offer(buffer);
+    }
+}
@@ -0,0 +1,110 @@
+package com.devpixl.dnstt.net;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Internet checksum (RFC 1071) helpers.
+ *
+ * The sum methods return an unfolded partial sum, so a pseudo-header, a
+ * header and a payload that live in different places can be added up
+ * without copying them together first. Ranges are summed as if they start
+ * on a 16-bit boundary; only the last range may have an odd length.
+ */
+public final class ChecksumEngine {
+
+    private ChecksumEngine() {}
+
+    /** Full checksum of a single range, ready to be stored in a header. */
+    public static int checksum(byte[] data, int offset, int length) {
+        return finish(sum(data, offset, length, 0));
+    }
+
+    /** Adds {@code length} bytes starting at {@code offset} to {@code sum}, eight bytes per step. */
+    public static long sum(byte[] data, int offset, int length, long sum) {
+        int i = offset;
+        int end = offset + length;
+        int wordsEnd = end - 7;
+        // Two 32-bit words per step into a 64-bit accumulator; carries are folded once at the end
+        for (; i < wordsEnd; i += 8) {
+            sum += (((data[i] & 0xFFL) << 24) | ((data[i + 1] & 0xFF) << 16)
+                    | ((data[i + 2] & 0xFF) << 8) | (data[i + 3] & 0xFF))
+                 + (((data[i + 4] & 0xFFL) << 24) | ((data[i + 5] & 0xFF) << 16)
+                    | ((data[i + 6] & 0xFF) << 8) | (data[i + 7] & 0xFF));
+        }
+        for (; i < end - 1; i += 2) {
+            sum += ((data[i] & 0xFF) << 8) | (data[i + 1] & 0xFF);
+        }
+        if (i < end) {
+            sum += (data[i] & 0xFF) << 8;
+        }
+        return sum;
+    }
+
+    /** Same as {@link #sum(byte[], int, int, long)} using absolute indexes into a big-endian buffer. */
+    public static long sum(ByteBuffer buffer, int index, int length, long sum) {
+        if (buffer.hasArray()) {
+            return sum(buffer.array(), buffer.arrayOffset() + index, length, sum);
+        }
+        int i = index;
+        int end = index + length;
+        for (; i < end - 7; i += 8) {
+            long word = buffer.getLong(i);
+            sum += (word >>> 32) + (word & 0xFFFFFFFFL);
+        }
+        for (; i < end - 1; i += 2) {
+            sum += buffer.getShort(i) & 0xFFFF;
+        }
+        if (i < end) {
+            sum += (buffer.get(i) & 0xFF) << 8;
+        }
+        return sum;
+    }
+
+    /** Partial sum of the IPv4 TCP/UDP pseudo-header, built from the address ints. */
+    public static long pseudoHeaderSum(int sourceAddress, int destinationAddress, int protocol, int length) {
+        return (sourceAddress >>> 16) + (sourceAddress & 0xFFFF)
+                + (destinationAddress >>> 16) + (destinationAddress & 0xFFFF)
+                + protocol + length;
+    }
+
+    /**
+     * Partial sum of the IPv6 pseudo-header (RFC 8200 section 8.1) for the
+     * 16 byte addresses at {@code sourceOffset} and {@code destinationOffset}.
+     */
+    public static long pseudoHeaderSum6(byte[] source, int sourceOffset, byte[] destination, int destinationOffset,
+                                        int nextHeader, int length) {
+        long sum = sum(source, sourceOffset, 16, 0);
+        sum = sum(destination, destinationOffset, 16, sum);
+        return sum + (length >>> 16) + (length & 0xFFFF) + nextHeader;
+    }
+
+    /** Folds a partial sum down to 16 bits. */
+    public static int fold(long sum) {
+        while ((sum >>> 16) != 0) {
+            sum = (sum & 0xFFFF) + (sum >>> 16);
+        }
+        return (int) sum;
+    }
+
+    /** Folds and complements a partial sum into the value that goes on the wire. */
+    public static int finish(long sum) {
+        return ~fold(sum) & 0xFFFF;
+    }
+
+    // --- RFC 1624 incremental updates ---
+
+    /** New checksum after one 16-bit header field changed from {@code oldWord} to {@code newWord}. */
+    public static int update16(int checksum, int oldWord, int newWord) {
+        // HC' = ~(~HC + ~m + m')  (RFC 1624, eqn. 3)
+        long sum = (~checksum & 0xFFFF) + (~oldWord & 0xFFFF) + (newWord & 0xFFFF);
+        return finish(sum);
+    }
+
+    /** Same as {@link #update16} for an aligned 32-bit field such as a sequence number or address. */
+    public static int update32(int checksum, int oldValue, int newValue) {
+        long sum = (~checksum & 0xFFFF)
+                + (~(oldValue >>> 16) & 0xFFFF) + (~oldValue & 0xFFFF)
+                + (newValue >>> 16) + (newValue & 0xFFFF);
+        return finish(sum);
+    }
+}
@@ -0,0 +1,245 @@
+package com.devpixl.dnstt.net;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * DNS response cache keyed by (qname, qtype, qclass), names compared case
+ * insensitively. A response lives for the smallest TTL among its records.
+ * NXDOMAIN and NODATA answers are cached for the SOA negative TTL as in
+ * RFC 2308. Entries are evicted least recently used once the cached bytes
+ * exceed the configured bound.
+ *
+ * A hit is served from a copy of the stored response. The copy gets the
+ * client's ID and question bytes, and its TTLs are lowered by the time the
+ * entry has been cached.
+ *
+ * Popular entries are refreshed ahead of expiry. Popularity is a hit
+ * counter on the entry, so it is bounded by the cache itself; half of it
+ * carries over when a refresh replaces the entry. Once an entry has been
+ * hit {@link #PREFETCH_MIN_HITS} times, the first hit in the last tenth
+ * of its TTL asks the {@link Refresher} for a background query. Expired
+ * entries are served stale for up to {@link #MAX_STALE_MS}, with
+ * {@link #STALE_TTL_SECONDS} TTLs as in RFC 8767, while a refresh runs.
+ */
+public class DnsCache {
+    private static final long MAX_TTL_SECONDS = 24 * 3600;
+    private static final long MAX_NEGATIVE_TTL_SECONDS = 3600;
+    private static final int PREFETCH_MIN_HITS = 3;
+    // Shorter TTLs aren't worth prefetching; serving stale covers them
+    private static final long MIN_PREFETCH_TTL_SECONDS = 10;
+    private static final long MAX_STALE_MS = 3600 * 1000;
+    private static final long STALE_TTL_SECONDS = 30;
+    // A refresh that got no usable answer may be retried after this long
+    private static final long REFRESH_RETRY_MS = 10000;
+    // Rough per-entry bookkeeping on top of the response and key bytes
+    private static final int ENTRY_OVERHEAD = 96;
+
+    public interface Refresher {
+        /** Sends {@code query[offset, offset + length)} upstream and feeds the answer to {@link #put}. */
+        void refresh(byte[] query, int offset, int length);
+    }
+
+    private final long maxBytes;
+    private final Refresher refresher;
+    private final LinkedHashMap<DnsQuestion, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private long bytes;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong staleHits = new AtomicLong();
+    private final AtomicLong refreshes = new AtomicLong();
+
+    public DnsCache(long maxBytes, Refresher refresher) {
+        this.maxBytes = maxBytes;
+        this.refresher = refresher;
+    }
+
+    /**
+     * Writes the cached answer to the query in {@code query[offset, offset + length)}
+     * into {@code buffer} at {@link PacketWriter#HEADER_ROOM}. Returns the
+     * answer's length, or -1 on a miss.
+     */
+    public int lookup(byte[] query, int offset, int length, ByteBuffer buffer) {
+        int questionEnd = DnsMessage.questionEnd(query, offset, length);
+        if (questionEnd < 0 || DnsMessage.isResponse(query, offset)) {
+            misses.incrementAndGet();
+            return -1;
+        }
+        DnsQuestion key = DnsQuestion.of(query, offset + DnsMessage.HEADER_SIZE, questionEnd);
+        long now = System.currentTimeMillis();
+
+        Entry entry;
+        boolean stale = false;
+        boolean refresh = false;
+        synchronized (this) {
+            entry = entries.get(key);
+            if (entry != null && now >= entry.expiresAt + MAX_STALE_MS) {
+                remove(key, entry);
+                entry = null;
+            }
+            if (entry != null) {
+                entry.hits++;
+                stale = now >= entry.expiresAt;
+                boolean due = stale || (entry.hits >= PREFETCH_MIN_HITS && now >= entry.refreshAt);
+                if (due && refresher != null && now - entry.refreshStartedAt >= REFRESH_RETRY_MS) {
+                    entry.refreshStartedAt = now;
+                    refresh = true;
+                }
+            }
+        }
+        if (entry == null || PacketWriter.HEADER_ROOM + entry.response.length > buffer.capacity()) {
+            misses.incrementAndGet();
+            return -1;
+        }
+
+        byte[] out = buffer.array();
+        int start = buffer.arrayOffset() + PacketWriter.HEADER_ROOM;
+        System.arraycopy(entry.response, 0, out, start, entry.response.length);
+        DnsMessage.setId(out, start, DnsMessage.id(query, offset));
+        // Echo the question as asked, so case randomized names still match
+        System.arraycopy(query, offset + DnsMessage.HEADER_SIZE, out, start + DnsMessage.HEADER_SIZE,
+                questionEnd - offset - DnsMessage.HEADER_SIZE);
+        long age = (now - entry.storedAt) / 1000;
+        for (int ttlOffset : entry.ttlOffsets) {
+            long ttl = stale ? STALE_TTL_SECONDS : Math.max(DnsMessage.getInt(entry.response, ttlOffset) - age, 0);
+            DnsMessage.putInt(out, start + ttlOffset, ttl);
+        }
+        hits.incrementAndGet();
+        if (stale) staleHits.incrementAndGet();
+        if (refresh) {
+            refreshes.incrementAndGet();
+            refresher.refresh(query, offset, length);
+        }
+        return entry.response.length;
+    }
+
+    /** Caches the response in {@code data[offset, offset + length)} if it is cacheable. */
+    public void put(byte[] data, int offset, int length) {
+        int questionEnd = DnsMessage.questionEnd(data, offset, length);
+        if (questionEnd < 0 || !DnsMessage.isResponse(data, offset) || DnsMessage.isTruncated(data, offset)) return;
+        int rcode = DnsMessage.rcode(data, offset);
+        if (rcode != DnsMessage.RCODE_NOERROR && rcode != DnsMessage.RCODE_NXDOMAIN) return;
+
+        int answers = DnsMessage.answerCount(data, offset);
+        int authority = DnsMessage.authorityCount(data, offset);
+        int records = answers + authority + DnsMessage.additionalCount(data, offset);
+        boolean negative = rcode == DnsMessage.RCODE_NXDOMAIN || answers == 0;
+
+        int[] ttlOffsets = new int[records];
+        int ttlCount = 0;
+        long minTtl = Long.MAX_VALUE;
+        long negativeTtl = -1;
+        int end = offset + length;
+        int position = questionEnd;
+        for (int i = 0; i < records; i++) {
+            position = DnsMessage.skipName(data, position, end);
+            if (position < 0 || position + DnsMessage.RR_FIXED_SIZE > end) return;
+            int type = DnsMessage.getShort(data, position);
+            long ttl = DnsMessage.getInt(data, position + 4);
+            int rdataEnd = position + DnsMessage.RR_FIXED_SIZE + DnsMessage.getShort(data, position + 8);
+            if (rdataEnd > end) return;
+
+            // OPT pseudo-records reuse the TTL field for flags
+            if (type != DnsMessage.TYPE_OPT) {
+                ttlOffsets[ttlCount++] = position + 4 - offset;
+                minTtl = Math.min(minTtl, ttl);
+                if (negative && type == DnsMessage.TYPE_SOA && i >= answers && i < answers + authority
+                        && rdataEnd - 4 >= position + DnsMessage.RR_FIXED_SIZE) {
+                    negativeTtl = Math.min(ttl, DnsMessage.getInt(data, rdataEnd - 4));
+                }
+            }
+            position = rdataEnd;
+        }
+
+        long ttl;
+        if (negative) {
+            // Without an SOA there is no negative TTL to go by
+            if (negativeTtl < 0) return;
+            ttl = Math.min(negativeTtl, MAX_NEGATIVE_TTL_SECONDS);
+        } else {
+            ttl = Math.min(minTtl, MAX_TTL_SECONDS);
+        }
+        if (ttl <= 0) return;
+
+        DnsQuestion key = DnsQuestion.of(data, offset + DnsMessage.HEADER_SIZE, questionEnd);
+        long now = System.currentTimeMillis();
+        Entry entry = new Entry(Arrays.copyOfRange(data, offset, end), Arrays.copyOf(ttlOffsets, ttlCount),
+                now, now + ttl * 1000,
+                ttl >= MIN_PREFETCH_TTL_SECONDS ? now + ttl * 900 : Long.MAX_VALUE);
+
+        synchronized (this) {
+            Entry previous = entries.put(key, entry);
+            if (previous != null) {
+                bytes -= previous.size(key);
+                entry.hits = previous.hits / 2;
+            }
+            bytes += entry.size(key);
+            Iterator<java.util.Map.Entry<DnsQuestion, Entry>> eldest = entries.entrySet().iterator();
+            while (bytes > maxBytes && eldest.hasNext()) {
+                java.util.Map.Entry<DnsQuestion, Entry> victim = eldest.next();
+                bytes -= victim.getValue().size(victim.getKey());
+                eldest.remove();
+            }
+        }
+    }
+
+    public long hits() {
+        return hits.get();
+    }
+
+    public long misses() {
+        return misses.get();
+    }
+
+    /** Hits answered from expired entries. */
+    public long staleHits() {
+        return staleHits.get();
+    }
+
+    /** Background refreshes started for popular or stale entries. */
+    public long refreshes() {
+        return refreshes.get();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        bytes = 0;
+    }
+
+    private void remove(DnsQuestion key, Entry entry) {
+        entries.remove(key);
+        bytes -= entry.size(key);
+    }
+
+    private static final class Entry {
+        final byte[] response;
+        // TTL fields, relative to the start of the response
+        final int[] ttlOffsets;
+        final long storedAt;
+        final long expiresAt;
+        final long refreshAt;
+        // Guarded by the cache
+        int hits;
+        long refreshStartedAt;
+
+        Entry(byte[] response, int[] ttlOffsets, long storedAt, long expiresAt, long refreshAt) {
+            this.response = response;
+            this.ttlOffsets = ttlOffsets;
+            this.storedAt = storedAt;
+            this.expiresAt = expiresAt;
+            this.refreshAt = refreshAt;
+        }
+
+        int size(DnsQuestion key) {
+            return response.length + ttlOffsets.length * 4 + key.bytes.length + ENTRY_OVERHEAD;
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package com.devpixl.dnstt.net;
+
+/**
+ * Just enough DNS wire format (RFC 1035) for the resolver path: header
+ * fields, skipping names and walking resource records in place. All
+ * offsets are absolute indexes into the given array, {@code offset} being
+ * the start of the message.
+ */
+public final class DnsMessage {
+    public static final int HEADER_SIZE = 12;
+
+    public static final int TYPE_A = 1;
+    public static final int TYPE_SOA = 6;
+    public static final int TYPE_AAAA = 28;
+    public static final int TYPE_OPT = 41;
+    public static final int CLASS_IN = 1;
+
+    public static final int RCODE_NOERROR = 0;
+    public static final int RCODE_NXDOMAIN = 3;
+
+    private static final int FLAG_RESPONSE = 0x8000;
+    private static final int FLAG_TRUNCATED = 0x0200;
+
+    /** Fixed part of a resource record after its name: type, class, TTL, rdlength. */
+    public static final int RR_FIXED_SIZE = 10;
+
+    private DnsMessage() {}
+
+    public static int id(byte[] data, int offset) {
+        return getShort(data, offset);
+    }
+
+    public static void setId(byte[] data, int offset, int id) {
+        putShort(data, offset, id);
+    }
+
+    public static int flags(byte[] data, int offset) {
+        return getShort(data, offset + 2);
+    }
+
+    public static boolean isResponse(byte[] data, int offset) {
+        return (flags(data, offset) & FLAG_RESPONSE) != 0;
+    }
+
+    public static boolean isTruncated(byte[] data, int offset) {
+        return (flags(data, offset) & FLAG_TRUNCATED) != 0;
+    }
+
+    public static int rcode(byte[] data, int offset) {
+        return flags(data, offset) & 0x0F;
+    }
+
+    public static int questionCount(byte[] data, int offset) { return getShort(data, offset + 4); }
+    public static int answerCount(byte[] data, int offset) { return getShort(data, offset + 6); }
+    public static int authorityCount(byte[] data, int offset) { return getShort(data, offset + 8); }
+    public static int additionalCount(byte[] data, int offset) { return getShort(data, offset + 10); }
+
+    /**
+     * Offset just past the (possibly compressed) name at {@code position},
+     * or -1 if it is malformed or runs past {@code end}.
+     */
+    public static int skipName(byte[] data, int position, int end) {
+        while (position < end) {
+            int length = data[position] & 0xFF;
+            if (length == 0) return position + 1;
+            if ((length & 0xC0) == 0xC0) return position + 2 <= end ? position + 2 : -1;
+            if ((length & 0xC0) != 0) return -1;
+            position += 1 + length;
+        }
+        return -1;
+    }
+
+    /**
+     * End of the single question of a message (just past QTYPE and QCLASS),
+     * or -1 unless the message holds exactly one well formed question.
+     */
+    public static int questionEnd(byte[] data, int offset, int length) {
+        if (length < HEADER_SIZE || questionCount(data, offset) != 1) return -1;
+        int end = offset + length;
+        int nameEnd = skipName(data, offset + HEADER_SIZE, end);
+        if (nameEnd < 0 || nameEnd + 4 > end) return -1;
+        return nameEnd + 4;
+    }
+
+    public static int getShort(byte[] data, int index) {
+        return ((data[index] & 0xFF) << 8) | (data[index + 1] & 0xFF);
+    }
+
+    public static long getInt(byte[] data, int index) {
+        return (((data[index] & 0xFF) << 24) | ((data[index + 1] & 0xFF) << 16)
+                | ((data[index + 2] & 0xFF) << 8) | (data[index + 3] & 0xFF)) & 0xFFFFFFFFL;
+    }
+
+    public static void putShort(byte[] data, int index, int value) {
+        data[index] = (byte) (value >>> 8);
+        data[index + 1] = (byte) value;
+    }
+
+    public static void putInt(byte[] data, int index, long value) {
+        data[index] = (byte) (value >>> 24);
+        data[index + 1] = (byte) (value >>> 16);
+        data[index + 2] = (byte) (value >>> 8);
+        data[index + 3] = (byte) value;
+    }
+}
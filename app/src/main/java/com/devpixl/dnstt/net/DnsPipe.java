@@ -0,0 +1,376 @@
+package com.devpixl.dnstt.net;
+
+import android.util.Log;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Long-lived DNS-over-TCP connections to one resolver through the SOCKS
+ * tunnel, with queries pipelined on them as in RFC 7766. Instead of a SOCKS
+ * handshake per lookup, a burst of queries shares a few open connections.
+ *
+ * Each query gets a fresh ID on the wire. The low bits pick its slot in the
+ * connection's in-flight table, and the ID is put back before the response
+ * goes out. A connection that dies is replaced on demand, and queries still
+ * in flight on it are sent again on the new one. A query unanswered after
+ * {@link #QUERY_TIMEOUT_MS} is given up on by a timer and counted as lost.
+ *
+ * With several tunnel instances each gets its own connections, and a
+ * query goes to the live instance with the fewest outstanding bytes, see
+ * {@link TunnelBalancer}. Queries count as outstanding until answered.
+ *
+ * Identical questions asked while one is already in flight share it
+ * (single flight): the later askers are parked on the first query and get
+ * their own copy of its answer, with their own ID and question bytes.
+ */
+public class DnsPipe {
+    private static final String TAG = "DnsPipe";
+    private static final int SLOT_BITS = 10;
+    private static final int MAX_IN_FLIGHT = 1 << SLOT_BITS;
+    private static final int MAX_ATTEMPTS = 2;
+    private static final long QUERY_TIMEOUT_MS = 10000;
+
+    public interface ResponseCallback {
+        /**
+         * Called with a buffer holding the {@code length} byte response at
+         * {@link PacketWriter#HEADER_ROOM}, original query ID restored. The
+         * callee owns the buffer; it is pooled when the response fits.
+         */
+        void onResponse(ByteBuffer buffer, int length);
+    }
+
+    private final SocksRelay relay;
+    private final BufferPool bufferPool;
+    private final String dnsServer;
+    private final TimingWheel timers;
+    private final Lane[] lanes;
+    private volatile boolean closed;
+
+    // Queries on the wire by question, for coalescing
+    private final HashMap<DnsQuestion, Pending> inFlightQuestions = new HashMap<>();
+
+    /** {@code connections} connections through each of the balancer's instances. */
+    public DnsPipe(SocksRelay relay, TunnelBalancer tunnels, String dnsServer, TimingWheel timers,
+                   int connections) {
+        this.relay = relay;
+        this.bufferPool = relay.bufferPool();
+        this.dnsServer = dnsServer;
+        this.timers = timers;
+        this.lanes = new Lane[tunnels.size() * connections];
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = new Lane(tunnels.instance(i / connections));
+        }
+    }
+
+    /**
+     * Sends the query in {@code data[offset, offset + length)}. The bytes are
+     * copied before returning. Queries that can't be answered are dropped
+     * silently, as UDP would; the client's own retry covers them.
+     */
+    public void query(byte[] data, int offset, int length, ResponseCallback callback) {
+        if (closed || length < DnsMessage.HEADER_SIZE || length > 0xFFFF) return;
+
+        DnsQuestion question = null;
+        int questionEnd = DnsMessage.questionEnd(data, offset, length);
+        if (questionEnd >= 0) {
+            question = DnsQuestion.of(data, offset + DnsMessage.HEADER_SIZE, questionEnd);
+            synchronized (inFlightQuestions) {
+                Pending leader = inFlightQuestions.get(question);
+                if (leader != null && System.currentTimeMillis() - leader.sentAt < QUERY_TIMEOUT_MS) {
+                    leader.followers.add(new Follower(DnsMessage.id(data, offset),
+                            Arrays.copyOfRange(data, offset + DnsMessage.HEADER_SIZE, questionEnd), callback));
+                    return;
+                }
+            }
+        }
+
+        Lane best = null;
+        long bestBytes = 0;
+        for (Lane lane : lanes) {
+            if (!lane.tunnel.isAlive()) continue;
+            long bytes = lane.tunnel.outstandingBytes.get();
+            if (best == null || bytes < bestBytes || (bytes == bestBytes && lane.inFlight < best.inFlight)) {
+                best = lane;
+                bestBytes = bytes;
+            }
+        }
+        (best != null ? best : lanes[0]).send(data, offset, length, question, callback);
+    }
+
+    private void forget(Pending pending) {
+        if (pending.question == null) return;
+        synchronized (inFlightQuestions) {
+            inFlightQuestions.remove(pending.question, pending);
+        }
+    }
+
+    /** Hands copies of the leader's answer to everyone who asked the same question meanwhile. */
+    private void answerFollowers(Pending pending, ByteBuffer response, int length) {
+        if (pending.question == null) return;
+        ArrayList<Follower> followers;
+        synchronized (inFlightQuestions) {
+            inFlightQuestions.remove(pending.question, pending);
+            if (pending.followers.isEmpty()) return;
+            followers = pending.followers;
+        }
+        byte[] source = response.array();
+        int sourceStart = response.arrayOffset() + PacketWriter.HEADER_ROOM;
+        for (Follower follower : followers) {
+            ByteBuffer copy = PacketWriter.HEADER_ROOM + length <= bufferPool.bufferSize()
+                    ? bufferPool.acquire()
+                    : ByteBuffer.allocate(PacketWriter.HEADER_ROOM + length);
+            byte[] data = copy.array();
+            int start = copy.arrayOffset() + PacketWriter.HEADER_ROOM;
+            System.arraycopy(source, sourceStart, data, start, length);
+            DnsMessage.setId(data, start, follower.id);
+            // Same name, so same length; only the letter case can differ
+            if (DnsMessage.HEADER_SIZE + follower.question.length <= length) {
+                System.arraycopy(follower.question, 0, data, start + DnsMessage.HEADER_SIZE, follower.question.length);
+            }
+            follower.callback.onResponse(copy, length);
+        }
+    }
+
+    public void shutdown() {
+        closed = true;
+        for (Lane lane : lanes) {
+            lane.shutdown();
+        }
+    }
+
+    private static final class Pending {
+        final int originalId;
+        final byte[] framed;
+        final DnsQuestion question;
+        final ResponseCallback callback;
+        final long sentAt;
+        int attempts = 1;
+        TimingWheel.Timeout expiry;
+        // Guarded by inFlightQuestions
+        final ArrayList<Follower> followers = new ArrayList<>(0);
+
+        Pending(int originalId, byte[] framed, DnsQuestion question, ResponseCallback callback, long sentAt) {
+            this.originalId = originalId;
+            this.framed = framed;
+            this.question = question;
+            this.callback = callback;
+            this.sentAt = sentAt;
+        }
+    }
+
+    private static final class Follower {
+        final int id;
+        final byte[] question;
+        final ResponseCallback callback;
+
+        Follower(int id, byte[] question, ResponseCallback callback) {
+            this.id = id;
+            this.question = question;
+            this.callback = callback;
+        }
+    }
+
+    /** One pipelined connection. Guarded by its own lock; responses arrive on a relay loop thread. */
+    private final class Lane {
+        final TunnelBalancer.Instance tunnel;
+        private final Pending[] slots = new Pending[MAX_IN_FLIGHT];
+        private Socks5Client client;
+        private int nextSlot;
+        private volatile int inFlight;
+
+        Lane(TunnelBalancer.Instance tunnel) {
+            this.tunnel = tunnel;
+        }
+
+        synchronized void send(byte[] data, int offset, int length, DnsQuestion question, ResponseCallback callback) {
+            long now = System.currentTimeMillis();
+            int slot = freeSlot();
+            if (slot < 0) {
+                Log.w(TAG, "Too many queries in flight, dropping one");
+                return;
+            }
+            int id = (ThreadLocalRandom.current().nextInt(1 << (16 - SLOT_BITS)) << SLOT_BITS) | slot;
+
+            byte[] framed = new byte[2 + length];
+            framed[0] = (byte) (length >> 8);
+            framed[1] = (byte) length;
+            System.arraycopy(data, offset, framed, 2, length);
+            int originalId = ((framed[2] & 0xFF) << 8) | (framed[3] & 0xFF);
+            framed[2] = (byte) (id >> 8);
+            framed[3] = (byte) id;
+
+            Pending pending = new Pending(originalId, framed, question, callback, now);
+            slots[slot] = pending;
+            inFlight++;
+            pending.expiry = timers.newTimeout(() -> expire(slot, pending));
+            pending.expiry.schedule(QUERY_TIMEOUT_MS);
+            tunnel.outstandingBytes.addAndGet(framed.length);
+            if (question != null) {
+                synchronized (inFlightQuestions) {
+                    inFlightQuestions.put(question, pending);
+                }
+            }
+            if (client == null) connect();
+            // Before the tunnel is up Socks5Client queues the bytes itself
+            client.send(framed);
+        }
+
+        // Next free slot after the last one handed out
+        private int freeSlot() {
+            for (int i = 0; i < MAX_IN_FLIGHT; i++) {
+                int slot = (nextSlot + i) & (MAX_IN_FLIGHT - 1);
+                if (slots[slot] == null) {
+                    nextSlot = slot + 1;
+                    return slot;
+                }
+            }
+            return -1;
+        }
+
+        /** Timer thread: the query went unanswered; its followers' own retries start over. */
+        private synchronized void expire(int slot, Pending pending) {
+            if (slots[slot] != pending) return;
+            release(slot);
+            tunnel.recordLoss();
+            TunnelMetrics.DNS_QUERIES_LOST.increment();
+            forget(pending);
+        }
+
+        private void connect() {
+            Socks5Client fresh = new Socks5Client(relay, tunnel.host, tunnel.port, dnsServer, 53);
+            fresh.onDataReceived = new ResponseReader(this)::onData;
+            fresh.onClosed = () -> onDead(fresh);
+            client = fresh;
+            // Queries queue on the client until the instance is up to take them
+            tunnel.whenReady(() -> fresh.connect(connected -> {
+                if (!connected) onDead(fresh);
+            }));
+        }
+
+        /** The connection failed or closed: retry what was in flight on a new one. */
+        private synchronized void onDead(Socks5Client dead) {
+            if (client != dead) return;
+            client = null;
+            if (closed) return;
+
+            // A dead instance keeps nothing; the clients' retries go to another one
+            boolean dropAll = !tunnel.isAlive();
+            int retry = 0;
+            for (int slot = 0; slot < MAX_IN_FLIGHT; slot++) {
+                Pending pending = slots[slot];
+                if (pending == null) continue;
+                if (dropAll || ++pending.attempts > MAX_ATTEMPTS) {
+                    release(slot);
+                    if (!dropAll) {
+                        tunnel.recordLoss();
+                        TunnelMetrics.DNS_QUERIES_LOST.increment();
+                    }
+                    forget(pending);
+                } else {
+                    retry++;
+                }
+            }
+            if (retry == 0) return;
+
+            connect();
+            for (Pending pending : slots) {
+                if (pending != null) client.send(pending.framed);
+            }
+        }
+
+        void dispatch(ByteBuffer buffer, int length) {
+            Pending pending = null;
+            if (length >= 12) {
+                byte[] data = buffer.array();
+                int idOffset = buffer.arrayOffset() + PacketWriter.HEADER_ROOM;
+                int id = ((data[idOffset] & 0xFF) << 8) | (data[idOffset + 1] & 0xFF);
+                synchronized (this) {
+                    int slot = id & (MAX_IN_FLIGHT - 1);
+                    pending = slots[slot];
+                    // The high bits guard against a late answer landing on a reused slot
+                    if (pending != null && (((pending.framed[2] & 0xFF) << 8) | (pending.framed[3] & 0xFF)) == id) {
+                        release(slot);
+                        long rtt = System.currentTimeMillis() - pending.sentAt;
+                        tunnel.recordAnswer(rtt);
+                        TunnelMetrics.DNS_QUERY_MS.record(rtt);
+                    } else {
+                        pending = null;
+                    }
+                }
+                if (pending != null) {
+                    data[idOffset] = (byte) (pending.originalId >> 8);
+                    data[idOffset + 1] = (byte) pending.originalId;
+                }
+            }
+            if (pending != null) {
+                // Copies for the followers are made before the leader's buffer is handed off
+                answerFollowers(pending, buffer, length);
+                pending.callback.onResponse(buffer, length);
+            } else {
+                bufferPool.release(buffer);
+            }
+        }
+
+        // Frees a slot whose query is done with, one way or another
+        private void release(int slot) {
+            slots[slot].expiry.cancel();
+            tunnel.outstandingBytes.addAndGet(-slots[slot].framed.length);
+            slots[slot] = null;
+            inFlight--;
+        }
+
+        synchronized void shutdown() {
+            if (client != null) client.disconnect();
+            client = null;
+            for (int slot = 0; slot < MAX_IN_FLIGHT; slot++) {
+                if (slots[slot] != null) release(slot);
+            }
+        }
+    }
+
+    /** Splits one connection's byte stream into length-prefixed responses. Loop thread only. */
+    private final class ResponseReader {
+        private final Lane lane;
+        private final byte[] lengthPrefix = new byte[2];
+        private int prefixRead;
+        private ByteBuffer response;
+        private int responseLength;
+        private int responseRead;
+
+        ResponseReader(Lane lane) {
+            this.lane = lane;
+        }
+
+        private void onData(ByteBuffer buffer, int length) {
+            byte[] data = buffer.array();
+            int offset = buffer.arrayOffset() + PacketWriter.HEADER_ROOM;
+            int end = offset + length;
+            while (offset < end) {
+                if (response == null) {
+                    lengthPrefix[prefixRead++] = data[offset++];
+                    if (prefixRead < 2) continue;
+                    prefixRead = 0;
+                    responseLength = ((lengthPrefix[0] & 0xFF) << 8) | (lengthPrefix[1] & 0xFF);
+                    responseRead = 0;
+                    response = PacketWriter.HEADER_ROOM + responseLength <= bufferPool.bufferSize()
+                            ? bufferPool.acquire()
+                            : ByteBuffer.allocate(PacketWriter.HEADER_ROOM + responseLength);
+                }
+                int n = Math.min(end - offset, responseLength - responseRead);
+                System.arraycopy(data, offset, response.array(),
+                        response.arrayOffset() + PacketWriter.HEADER_ROOM + responseRead, n);
+                offset += n;
+                responseRead += n;
+                if (responseRead == responseLength) {
+                    ByteBuffer complete = response;
+                    response = null;
+                    lane.dispatch(complete, responseLength);
+                }
+            }
+            bufferPool.release(buffer);
+        }
+    }
+}
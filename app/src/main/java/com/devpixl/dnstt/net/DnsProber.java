@@ -0,0 +1,98 @@
+package com.devpixl.dnstt.net;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Probes a resolver with one UDP query for a random name under the tunnel
+ * domain. The random label defeats the resolver's cache, so the answer has
+ * to come from the dnstt server and the round trip covers the same path
+ * the tunnel takes. Any answer counts except SERVFAIL and REFUSED, which
+ * is how resolvers tend to say they are rate-limiting.
+ */
+public class DnsProber implements ResolverPool.Prober {
+    private static final int TYPE_TXT = 16;
+    private static final int RCODE_SERVFAIL = 2;
+    private static final int RCODE_REFUSED = 5;
+
+    private final String domain;
+    private final int timeoutMillis;
+
+    public DnsProber(String domain, int timeoutMillis) {
+        this.domain = domain;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    @Override
+    public long probe(String resolver) {
+        int id = ThreadLocalRandom.current().nextInt(0x10000);
+        String name = Long.toHexString(ThreadLocalRandom.current().nextLong() & Long.MAX_VALUE) + "." + domain;
+        byte[] query = buildQuery(id, name);
+        try (DatagramSocket socket = new DatagramSocket()) {
+            InetSocketAddress address = parseAddress(resolver);
+            long start = System.nanoTime();
+            long deadline = start + timeoutMillis * 1000000L;
+            socket.send(new DatagramPacket(query, query.length, address));
+            byte[] response = new byte[512];
+            DatagramPacket packet = new DatagramPacket(response, response.length);
+            while (true) {
+                int remaining = (int) ((deadline - System.nanoTime()) / 1000000L);
+                if (remaining <= 0) return -1;
+                socket.setSoTimeout(remaining);
+                socket.receive(packet);
+                // Skip strays and late answers to someone else
+                if (packet.getLength() < DnsMessage.HEADER_SIZE || DnsMessage.id(response, 0) != id
+                        || !DnsMessage.isResponse(response, 0)) continue;
+                int rcode = DnsMessage.rcode(response, 0);
+                if (rcode == RCODE_SERVFAIL || rcode == RCODE_REFUSED) return -1;
+                return (System.nanoTime() - start) / 1000000L;
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            // Timed out, unreachable or not an address: lost either way
+            return -1;
+        }
+    }
+
+    /** A TXT question for {@code name}, the record type dnstt itself asks for. */
+    static byte[] buildQuery(int id, String name) {
+        byte[] labels = name.getBytes(StandardCharsets.US_ASCII);
+        byte[] query = new byte[DnsMessage.HEADER_SIZE + labels.length + 2 + 4];
+        DnsMessage.putShort(query, 0, id);
+        // Recursion desired, one question
+        DnsMessage.putShort(query, 2, 0x0100);
+        DnsMessage.putShort(query, 4, 1);
+        int position = DnsMessage.HEADER_SIZE;
+        for (String label : name.split("\\.")) {
+            if (label.isEmpty()) continue;
+            query[position++] = (byte) label.length();
+            for (int i = 0; i < label.length(); i++) {
+                query[position++] = (byte) label.charAt(i);
+            }
+        }
+        query[position++] = 0;
+        DnsMessage.putShort(query, position, TYPE_TXT);
+        DnsMessage.putShort(query, position + 2, DnsMessage.CLASS_IN);
+        return Arrays.copyOf(query, position + 4);
+    }
+
+    /** {@code host}, {@code host:port} or {@code [v6]:port}; the port defaults to 53. */
+    static InetSocketAddress parseAddress(String resolver) {
+        String host = resolver.trim();
+        int port = 53;
+        if (host.startsWith("[")) {
+            int close = host.indexOf(']');
+            if (close < 0) throw new IllegalArgumentException("Bad resolver " + resolver);
+            if (host.length() > close + 1 && host.charAt(close + 1) == ':') port = Integer.parseInt(host.substring(close + 2));
+            host = host.substring(1, close);
+        } else if (host.indexOf(':') >= 0 && host.indexOf(':') == host.lastIndexOf(':')) {
+            port = Integer.parseInt(host.substring(host.indexOf(':') + 1));
+            host = host.substring(0, host.indexOf(':'));
+        }
+        return new InetSocketAddress(host, port);
+    }
+}
@@ -0,0 +1,38 @@
+package com.devpixl.dnstt.net;
+
+import java.util.Arrays;
+
+/**
+ * A DNS question as a map key: QNAME, QTYPE and QCLASS as on the wire,
+ * with the name lowercased so lookups ignore case.
+ */
+final class DnsQuestion {
+    final byte[] bytes;
+    private final int hash;
+
+    private DnsQuestion(byte[] bytes) {
+        this.bytes = bytes;
+        this.hash = Arrays.hashCode(bytes);
+    }
+
+    /** The question in {@code data[start, end)}, as delimited by {@link DnsMessage#questionEnd}. */
+    static DnsQuestion of(byte[] data, int start, int end) {
+        byte[] bytes = Arrays.copyOfRange(data, start, end);
+        // ASCII only; label lengths are at most 63 so they never fall in 'A'..'Z'
+        for (int i = 0; i < bytes.length - 4; i++) {
+            byte b = bytes[i];
+            if (b >= 'A' && b <= 'Z') bytes[i] = (byte) (b + 32);
+        }
+        return new DnsQuestion(bytes);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof DnsQuestion && Arrays.equals(bytes, ((DnsQuestion) other).bytes);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+}
@@ -0,0 +1,145 @@
+package com.devpixl.dnstt.net;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Fake-IP DNS: A queries are answered locally with an address from a
+ * reserved pool, and the TCP path maps the address back to the name so
+ * CONNECT can carry the hostname. The tunnel server then resolves it,
+ * which saves a DNS round trip through the tunnel for every new site.
+ *
+ * Names live in an LRU of at most {@code maxNames}, with a reverse index
+ * from pool offset to name. When the pool is full, the least recently used
+ * name gives its address to the new one. AAAA queries get an empty NOERROR
+ * answer so clients stick to IPv4. Every other query type is left to the
+ * real resolver.
+ */
+public class FakeDns {
+    /** 198.18.0.0/15, set aside for benchmarking (RFC 2544) and never routed. */
+    public static final int DEFAULT_NETWORK = (198 << 24) | (18 << 16);
+    public static final int DEFAULT_PREFIX_LENGTH = 15;
+
+    // Short, so clients come back soon after a mapping has been recycled
+    private static final int TTL_SECONDS = 10;
+
+    private final int network;
+    private final int mask;
+    private final String[] namesByOffset;
+    private final LinkedHashMap<String, Integer> offsetsByName;
+    private final int maxNames;
+    private int nextOffset = 1;
+
+    public FakeDns(int network, int prefixLength, int maxNames) {
+        this.mask = prefixLength == 0 ? 0 : -1 << (32 - prefixLength);
+        this.network = network & mask;
+        int poolSize = ~mask + 1;
+        // Offset 0 is the network address and the last one the broadcast address
+        this.maxNames = Math.min(maxNames, poolSize - 2);
+        this.namesByOffset = new String[poolSize];
+        this.offsetsByName = new LinkedHashMap<>(Math.min(this.maxNames, 1024), 0.75f, true);
+    }
+
+    public boolean isFake(int address) {
+        return (address & mask) == network;
+    }
+
+    /** The name behind a pool address, or null if it was never handed out or has been recycled. */
+    public synchronized String hostFor(int address) {
+        if (!isFake(address)) return null;
+        String host = namesByOffset[address & ~mask];
+        // A connection counts as use, so busy names don't get recycled
+        if (host != null) offsetsByName.get(host);
+        return host;
+    }
+
+    public synchronized int addressFor(String host) {
+        Integer offset = offsetsByName.get(host);
+        if (offset == null) {
+            offset = allocate();
+            offsetsByName.put(host, offset);
+            namesByOffset[offset] = host;
+        }
+        return network | offset;
+    }
+
+    public synchronized int size() {
+        return offsetsByName.size();
+    }
+
+    private int allocate() {
+        if (offsetsByName.size() >= maxNames) {
+            Iterator<Map.Entry<String, Integer>> eldest = offsetsByName.entrySet().iterator();
+            Map.Entry<String, Integer> victim = eldest.next();
+            eldest.remove();
+            namesByOffset[victim.getValue()] = null;
+            return victim.getValue();
+        }
+        while (namesByOffset[nextOffset] != null) {
+            nextOffset = nextOffset + 1 >= namesByOffset.length - 1 ? 1 : nextOffset + 1;
+        }
+        return nextOffset;
+    }
+
+    /**
+     * Answers an A or AAAA query in {@code query[offset, offset + length)}
+     * into {@code buffer} at {@link PacketWriter#HEADER_ROOM}. Returns the
+     * answer's length, or -1 if the query should go to the real resolver.
+     */
+    public int answer(byte[] query, int offset, int length, ByteBuffer buffer) {
+        int questionEnd = DnsMessage.questionEnd(query, offset, length);
+        if (questionEnd < 0 || DnsMessage.isResponse(query, offset)) return -1;
+        int type = DnsMessage.getShort(query, questionEnd - 4);
+        int qclass = DnsMessage.getShort(query, questionEnd - 2);
+        if (qclass != DnsMessage.CLASS_IN || (type != DnsMessage.TYPE_A && type != DnsMessage.TYPE_AAAA)) return -1;
+
+        String host = decodeName(query, offset + DnsMessage.HEADER_SIZE, questionEnd - 4);
+        if (host == null) return -1;
+
+        int questionLength = questionEnd - offset;
+        boolean a = type == DnsMessage.TYPE_A;
+        int answerLength = questionLength + (a ? 16 : 0);
+        if (PacketWriter.HEADER_ROOM + answerLength > buffer.capacity()) return -1;
+
+        byte[] out = buffer.array();
+        int start = buffer.arrayOffset() + PacketWriter.HEADER_ROOM;
+        System.arraycopy(query, offset, out, start, questionLength);
+        // QR and RA set, opcode and RD kept, NOERROR
+        int flags = DnsMessage.flags(query, offset);
+        DnsMessage.putShort(out, start + 2, 0x8080 | (flags & 0x7900));
+        DnsMessage.putShort(out, start + 6, a ? 1 : 0);
+        DnsMessage.putShort(out, start + 8, 0);
+        DnsMessage.putShort(out, start + 10, 0);
+
+        if (a) {
+            int i = start + questionLength;
+            DnsMessage.putShort(out, i, 0xC000 | DnsMessage.HEADER_SIZE);
+            DnsMessage.putShort(out, i + 2, DnsMessage.TYPE_A);
+            DnsMessage.putShort(out, i + 4, DnsMessage.CLASS_IN);
+            DnsMessage.putInt(out, i + 6, TTL_SECONDS);
+            DnsMessage.putShort(out, i + 10, 4);
+            DnsMessage.putInt(out, i + 12, addressFor(host) & 0xFFFFFFFFL);
+        }
+        return answerLength;
+    }
+
+    // Dotted, lowercased name from uncompressed labels; null if it isn't plain ASCII
+    private static String decodeName(byte[] data, int position, int end) {
+        StringBuilder name = new StringBuilder(end - position);
+        while (position < end) {
+            int length = data[position++] & 0xFF;
+            if (length == 0) break;
+            if (length > 63 || position + length > end) return null;
+            if (name.length() > 0) name.append('.');
+            for (int i = 0; i < length; i++) {
+                int c = data[position + i] & 0xFF;
+                if (c <= ' ' || c >= 0x7F || c == '.') return null;
+                name.append((char) (c >= 'A' && c <= 'Z' ? c + 32 : c));
+            }
+            position += length;
+        }
+        return name.length() == 0 ? null : name.toString();
+    }
+}
@@ -0,0 +1,208 @@
+package com.devpixl.dnstt.net;
+
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Open addressing hash table keyed by a flow's 4-tuple packed into ints.
+ *
+ * Keys are fixed width int arrays: {@link #IPV4_KEY_WORDS} for IPv4 and
+ * {@link #IPV6_KEY_WORDS} for IPv6, see {@link #ipv4Key} and {@link #ipv6Key}. The table copies
+ * the key words into a flat array on insert, so callers can keep reusing one
+ * scratch key for lookups and no boxing or String building happens per
+ * packet. Linear probing with backward shift deletion keeps probe chains
+ * short without tombstones.
+ */
+public class FlowTable<V> {
+    /** Source address, destination address, source port &lt;&lt; 16 | destination port. */
+    public static final int IPV4_KEY_WORDS = 3;
+    /** Two 128-bit addresses plus the packed ports. */
+    public static final int IPV6_KEY_WORDS = 9;
+
+    private static final int MIN_CAPACITY = 64;
+
+    private final int keyWords;
+    private int[] keys;
+    private Object[] values;
+    private int mask;
+    private int size;
+
+    public FlowTable(int keyWords) {
+        this(keyWords, MIN_CAPACITY);
+    }
+
+    public FlowTable(int keyWords, int expectedFlows) {
+        this.keyWords = keyWords;
+        int capacity = MIN_CAPACITY;
+        while (capacity < expectedFlows * 2) capacity <<= 1;
+        allocate(capacity);
+    }
+
+    public static int[] ipv4Key(int[] key, int sourceAddress, int sourcePort,
+                                int destinationAddress, int destinationPort) {
+        key[0] = sourceAddress;
+        key[1] = destinationAddress;
+        key[2] = (sourcePort << 16) | (destinationPort & 0xFFFF);
+        return key;
+    }
+
+    /** Packs an IPv6 4-tuple, reading the 16 byte addresses in place from {@code data}. */
+    public static int[] ipv6Key(int[] key, byte[] data, int sourceOffset, int sourcePort,
+                                int destinationOffset, int destinationPort) {
+        for (int i = 0; i < 4; i++) {
+            key[i] = readInt(data, sourceOffset + i * 4);
+            key[4 + i] = readInt(data, destinationOffset + i * 4);
+        }
+        key[8] = (sourcePort << 16) | (destinationPort & 0xFFFF);
+        return key;
+    }
+
+    private static int readInt(byte[] data, int index) {
+        return ((data[index] & 0xFF) << 24) | ((data[index + 1] & 0xFF) << 16)
+                | ((data[index + 2] & 0xFF) << 8) | (data[index + 3] & 0xFF);
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    @SuppressWarnings("unchecked")
+    public synchronized V get(int[] key) {
+        int slot = find(key);
+        return slot < 0 ? null : (V) values[slot];
+    }
+
+    @SuppressWarnings("unchecked")
+    public synchronized V put(int[] key, V value) {
+        int slot = find(key);
+        if (slot >= 0) {
+            V previous = (V) values[slot];
+            values[slot] = value;
+            return previous;
+        }
+        if ((size + 1) * 2 > values.length) {
+            resize(values.length * 2);
+        }
+        insert(key, 0, value);
+        size++;
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public synchronized V remove(int[] key) {
+        int slot = find(key);
+        if (slot < 0) return null;
+        V previous = (V) values[slot];
+        delete(slot);
+        return previous;
+    }
+
+    /** Removes the flow under {@code key} only if it is still {@code value}. */
+    public synchronized boolean remove(int[] key, V value) {
+        int slot = find(key);
+        if (slot < 0 || values[slot] != value) return false;
+        delete(slot);
+        return true;
+    }
+
+    /** Removes every flow the filter accepts. The filter runs under the table lock. */
+    @SuppressWarnings("unchecked")
+    public synchronized void removeIf(Predicate<V> filter) {
+        int slot = 0;
+        while (slot < values.length) {
+            // A backward shift may move an unvisited entry into this slot, so re-check it
+            if (values[slot] != null && filter.test((V) values[slot])) {
+                delete(slot);
+            } else {
+                slot++;
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public synchronized void forEach(Consumer<V> action) {
+        for (Object value : values) {
+            if (value != null) action.accept((V) value);
+        }
+    }
+
+    public synchronized void clear() {
+        allocate(MIN_CAPACITY);
+    }
+
+    private void allocate(int capacity) {
+        keys = new int[capacity * keyWords];
+        values = new Object[capacity];
+        mask = capacity - 1;
+        size = 0;
+    }
+
+    private int find(int[] key) {
+        int slot = hash(key, 0) & mask;
+        while (values[slot] != null) {
+            if (keyEquals(slot, key)) return slot;
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    private void insert(int[] source, int sourceOffset, Object value) {
+        int slot = hash(source, sourceOffset) & mask;
+        while (values[slot] != null) {
+            slot = (slot + 1) & mask;
+        }
+        System.arraycopy(source, sourceOffset, keys, slot * keyWords, keyWords);
+        values[slot] = value;
+    }
+
+    private void delete(int slot) {
+        values[slot] = null;
+        size--;
+        // Shift following entries back so lookups never stop early at the hole
+        int hole = slot;
+        int next = (slot + 1) & mask;
+        while (values[next] != null) {
+            int home = hash(keys, next * keyWords) & mask;
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                System.arraycopy(keys, next * keyWords, keys, hole * keyWords, keyWords);
+                values[hole] = values[next];
+                values[next] = null;
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+    }
+
+    private void resize(int capacity) {
+        int[] oldKeys = keys;
+        Object[] oldValues = values;
+        int oldSize = size;
+        allocate(capacity);
+        for (int i = 0; i < oldValues.length; i++) {
+            if (oldValues[i] != null) insert(oldKeys, i * keyWords, oldValues[i]);
+        }
+        size = oldSize;
+    }
+
+    private boolean keyEquals(int slot, int[] key) {
+        int base = slot * keyWords;
+        for (int i = 0; i < keyWords; i++) {
+            if (keys[base + i] != key[i]) return false;
+        }
+        return true;
+    }
+
+    private int hash(int[] source, int offset) {
+        int h = 0;
+        for (int i = 0; i < keyWords; i++) {
+            h = h * 0x9E3779B1 + source[offset + i];
+        }
+        // murmur3 finalizer so the low bits used for the slot are well mixed
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return h;
+    }
+}
@@ -0,0 +1,211 @@
+package com.devpixl.dnstt.net;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * A registry of named counters, histograms and gauges, cheap enough for the
+ * packet path. Counters and histogram buckets are {@link LongAdder}s, which
+ * stripe under contention, so lanes and relay loops never fight over one
+ * cache line; recording allocates nothing. Look a metric up once and keep
+ * the reference: the lookups are synchronized, the recording isn't.
+ *
+ * Gauges are read only when a {@link #snapshot} is taken, for values some
+ * component already keeps, such as a queue depth.
+ */
+public final class Metrics {
+    private final LinkedHashMap<String, Counter> counters = new LinkedHashMap<>();
+    private final LinkedHashMap<String, Histogram> histograms = new LinkedHashMap<>();
+    private final LinkedHashMap<String, LongSupplier> gauges = new LinkedHashMap<>();
+
+    public static final class Counter {
+        private final LongAdder value = new LongAdder();
+
+        public void increment() {
+            value.increment();
+        }
+
+        public void add(long amount) {
+            value.add(amount);
+        }
+
+        public long get() {
+            return value.sum();
+        }
+    }
+
+    /** Counts values into fixed buckets, each bound the largest value its bucket takes. */
+    public static final class Histogram {
+        private final long[] bounds;
+        // One more than bounds, for values past the last one
+        private final LongAdder[] counts;
+        private final LongAdder sum = new LongAdder();
+
+        Histogram(long[] bounds) {
+            this.bounds = bounds.clone();
+            this.counts = new LongAdder[bounds.length + 1];
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = new LongAdder();
+            }
+        }
+
+        public void record(long value) {
+            int bucket = 0;
+            while (bucket < bounds.length && value > bounds[bucket]) bucket++;
+            counts[bucket].increment();
+            sum.add(value);
+        }
+
+        HistogramSnapshot snapshot() {
+            long[] copy = new long[counts.length];
+            for (int i = 0; i < counts.length; i++) {
+                copy[i] = counts[i].sum();
+            }
+            return new HistogramSnapshot(bounds, copy, sum.sum());
+        }
+
+        void reset() {
+            for (LongAdder count : counts) {
+                count.reset();
+            }
+            sum.reset();
+        }
+    }
+
+    public static final class HistogramSnapshot {
+        private final long[] bounds;
+        private final long[] counts;
+        public final long count;
+        public final long sum;
+
+        HistogramSnapshot(long[] bounds, long[] counts, long sum) {
+            this.bounds = bounds;
+            this.counts = counts;
+            this.sum = sum;
+            long total = 0;
+            for (long n : counts) total += n;
+            this.count = total;
+        }
+
+        public double mean() {
+            return count == 0 ? 0 : (double) sum / count;
+        }
+
+        /**
+         * The bound of the bucket holding the {@code fraction} quantile, so
+         * an upper estimate; -1 if it lies past the last bound, 0 if empty.
+         */
+        public long percentile(double fraction) {
+            if (count == 0) return 0;
+            long rank = (long) Math.ceil(fraction * count);
+            long seen = 0;
+            for (int i = 0; i < bounds.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) return bounds[i];
+            }
+            return -1;
+        }
+    }
+
+    /** Values as of one moment, for the UI and the debug dump. */
+    public static final class Snapshot {
+        public final long takenAt;
+        private final Map<String, Long> values;
+        private final Map<String, HistogramSnapshot> histograms;
+
+        Snapshot(long takenAt, Map<String, Long> values, Map<String, HistogramSnapshot> histograms) {
+            this.takenAt = takenAt;
+            this.values = values;
+            this.histograms = histograms;
+        }
+
+        /** A counter or gauge, 0 if there is none by that name. */
+        public long value(String name) {
+            Long value = values.get(name);
+            return value != null ? value : 0;
+        }
+
+        /** A histogram, empty if there is none by that name. */
+        public HistogramSnapshot histogram(String name) {
+            HistogramSnapshot histogram = histograms.get(name);
+            return histogram != null ? histogram : new HistogramSnapshot(new long[0], new long[1], 0);
+        }
+
+        /** One metric per line, histograms with count, mean and percentiles. */
+        public String format() {
+            StringBuilder text = new StringBuilder();
+            for (Map.Entry<String, Long> entry : values.entrySet()) {
+                text.append(entry.getKey()).append(" = ").append(entry.getValue()).append('\n');
+            }
+            for (Map.Entry<String, HistogramSnapshot> entry : histograms.entrySet()) {
+                HistogramSnapshot histogram = entry.getValue();
+                text.append(entry.getKey()).append(": n=").append(histogram.count);
+                if (histogram.count > 0) {
+                    text.append(String.format(Locale.US, " mean=%.1f", histogram.mean()))
+                            .append(" p50<=").append(bound(histogram.percentile(0.5)))
+                            .append(" p90<=").append(bound(histogram.percentile(0.9)))
+                            .append(" p99<=").append(bound(histogram.percentile(0.99)));
+                }
+                text.append('\n');
+            }
+            return text.toString();
+        }
+
+        private static String bound(long value) {
+            return value < 0 ? "max" : String.valueOf(value);
+        }
+    }
+
+    public synchronized Counter counter(String name) {
+        Counter counter = counters.get(name);
+        if (counter == null) {
+            counter = new Counter();
+            counters.put(name, counter);
+        }
+        return counter;
+    }
+
+    /** The histogram called {@code name}; the bounds count only when it is first created. */
+    public synchronized Histogram histogram(String name, long... bounds) {
+        Histogram histogram = histograms.get(name);
+        if (histogram == null) {
+            histogram = new Histogram(bounds);
+            histograms.put(name, histogram);
+        }
+        return histogram;
+    }
+
+    /** Reports {@code source} as {@code name}, replacing any gauge of that name. */
+    public synchronized void gauge(String name, LongSupplier source) {
+        gauges.put(name, source);
+    }
+
+    /** Zeroes counters and histograms and drops the gauges, e.g. for a new session. */
+    public synchronized void reset() {
+        for (Counter counter : counters.values()) {
+            counter.value.reset();
+        }
+        for (Histogram histogram : histograms.values()) {
+            histogram.reset();
+        }
+        gauges.clear();
+    }
+
+    public synchronized Snapshot snapshot() {
+        LinkedHashMap<String, Long> values = new LinkedHashMap<>();
+        for (Map.Entry<String, Counter> entry : counters.entrySet()) {
+            values.put(entry.getKey(), entry.getValue().get());
+        }
+        for (Map.Entry<String, LongSupplier> entry : gauges.entrySet()) {
+            values.put(entry.getKey(), entry.getValue().getAsLong());
+        }
+        LinkedHashMap<String, HistogramSnapshot> snapshots = new LinkedHashMap<>();
+        for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+            snapshots.put(entry.getKey(), entry.getValue().snapshot());
+        }
+        return new Snapshot(System.currentTimeMillis(), values, snapshots);
+    }
+}
@@ -0,0 +1,175 @@
+package com.devpixl.dnstt.net;
+
+import android.util.Log;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Spreads packets read from the TUN over worker lanes. A packet goes to the
+ * lane picked by a hash of its 4-tuple, so one flow always lands on the same
+ * lane and stays in order, while different flows are handled on all cores.
+ *
+ * {@link #dispatch} copies the packet into a pooled buffer and never blocks:
+ * when the lane's bounded queue is full the packet is dropped and counted,
+ * and TCP retransmits it. A flow that is slow to handle can then only back
+ * up its own lane, never the TUN reader.
+ */
+public class PacketDispatcher {
+    private static final String TAG = "PacketDispatcher";
+
+    public interface Handler {
+        /**
+         * Called on the lane's thread. {@code view} wraps a pooled copy of
+         * the packet that is released when this returns.
+         */
+        void handle(int lane, PacketView view);
+    }
+
+    private final BufferPool bufferPool;
+    private final Handler handler;
+    private final Lane[] lanes;
+    private volatile boolean running = true;
+
+    public PacketDispatcher(int laneCount, int queueCapacity, BufferPool bufferPool, Handler handler) {
+        this.bufferPool = bufferPool;
+        this.handler = handler;
+        this.lanes = new Lane[laneCount];
+        for (int i = 0; i < laneCount; i++) {
+            lanes[i] = new Lane(i, queueCapacity);
+        }
+    }
+
+    public void start() {
+        for (Lane lane : lanes) {
+            Thread thread = new Thread(lane, "PacketLane-" + lane.index);
+            thread.setDaemon(true);
+            lane.thread = thread;
+            thread.start();
+        }
+    }
+
+    /**
+     * Stops the lanes and waits up to {@code timeoutMillis} for each to
+     * finish the packet it is handling, so the flows it touches can be
+     * torn down safely afterwards.
+     */
+    public void shutdown(long timeoutMillis) {
+        running = false;
+        for (Lane lane : lanes) {
+            if (lane.thread != null) lane.thread.interrupt();
+        }
+        try {
+            for (Lane lane : lanes) {
+                if (lane.thread != null && lane.thread != Thread.currentThread()) lane.thread.join(timeoutMillis);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Queues the TCP or UDP packet in {@code view} on its flow's lane.
+     * Returns false if it was dropped.
+     */
+    public boolean dispatch(PacketView view) {
+        Lane lane = lanes[laneFor(view)];
+        int length = view.ipTotalLength();
+        if (!running || length > bufferPool.bufferSize()) {
+            lane.dropped.incrementAndGet();
+            return false;
+        }
+        ByteBuffer copy = bufferPool.acquire();
+        copy.put(view.array(), view.ipOffset(), length);
+        copy.flip();
+        if (!lane.queue.offer(copy)) {
+            bufferPool.release(copy);
+            lane.dropped.incrementAndGet();
+            return false;
+        }
+        lane.dispatched.incrementAndGet();
+        int depth = lane.queue.size();
+        int max;
+        while (depth > (max = lane.maxDepth.get()) && !lane.maxDepth.compareAndSet(max, depth)) {
+            // Lost a race with the lane; read the high-water mark again
+        }
+        return true;
+    }
+
+    private int laneFor(PacketView view) {
+        if (lanes.length == 1) return 0;
+        // The source and destination addresses sit next to each other in both IP versions
+        byte[] data = view.array();
+        int start = view.sourceAddressOffset();
+        int end = view.destinationAddressOffset() + (view.isIpv6() ? 16 : 4);
+        int hash = (view.sourcePort() << 16) | view.destinationPort();
+        for (int i = start; i < end; i += 4) {
+            hash = hash * 31 + (((data[i] & 0xFF) << 24) | ((data[i + 1] & 0xFF) << 16)
+                    | ((data[i + 2] & 0xFF) << 8) | (data[i + 3] & 0xFF));
+        }
+        hash *= 0x9E3779B9;
+        return ((hash ^ (hash >>> 16)) & Integer.MAX_VALUE) % lanes.length;
+    }
+
+    public int laneCount() {
+        return lanes.length;
+    }
+
+    /** Packets waiting on {@code lane} right now. */
+    public int queueDepth(int lane) {
+        return lanes[lane].queue.size();
+    }
+
+    /** The most packets ever seen waiting on {@code lane}. */
+    public int maxQueueDepth(int lane) {
+        return lanes[lane].maxDepth.get();
+    }
+
+    public long dispatched(int lane) {
+        return lanes[lane].dispatched.get();
+    }
+
+    /** Packets dropped because {@code lane} was full, or too large to copy. */
+    public long dropped(int lane) {
+        return lanes[lane].dropped.get();
+    }
+
+    private final class Lane implements Runnable {
+        final int index;
+        final ArrayBlockingQueue<ByteBuffer> queue;
+        final AtomicLong dispatched = new AtomicLong();
+        final AtomicLong dropped = new AtomicLong();
+        final AtomicInteger maxDepth = new AtomicInteger();
+        Thread thread;
+
+        Lane(int index, int capacity) {
+            this.index = index;
+            this.queue = new ArrayBlockingQueue<>(capacity);
+        }
+
+        @Override
+        public void run() {
+            PacketView view = new PacketView();
+            try {
+                while (running) {
+                    ByteBuffer packet = queue.take();
+                    try {
+                        if (view.wrap(packet, packet.limit())) handler.handle(index, view);
+                    } catch (RuntimeException e) {
+                        // One bad packet must not take the lane's other flows down with it
+                        Log.e(TAG, "Lane " + index + " failed on a packet", e);
+                    } finally {
+                        bufferPool.release(packet);
+                    }
+                }
+            } catch (InterruptedException ignored) {
+            } finally {
+                ByteBuffer packet;
+                while ((packet = queue.poll()) != null) {
+                    bufferPool.release(packet);
+                }
+            }
+        }
+    }
+}
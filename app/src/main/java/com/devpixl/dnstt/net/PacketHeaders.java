@@ -205,14 +205,8 @@ public class PacketHeaders {
             buffer.put(payload);
 
             byte[] array = buffer.array();
-            byte[] pseudoHeader = createPseudoHeader(sourceIp, destIp, tcpLength, (byte) 6);
-
-            // Combine for checksum calculation
-            byte[] forChecksum = new byte[pseudoHeader.length + array.length];
-            System.arraycopy(pseudoHeader, 0, forChecksum, 0, pseudoHeader.length);
-            System.arraycopy(array, 0, forChecksum, pseudoHeader.length, array.length);
-
-            int checksum = calculateChecksum(forChecksum, 0, forChecksum.length);
+            long pseudo = pseudoHeaderSum(sourceIp, destIp, tcpLength, 6);
+            int checksum = ChecksumEngine.finish(ChecksumEngine.sum(array, 0, array.length, pseudo));
             buffer.putShort(16, (short) checksum);
 
             return buffer.array();
@@ -255,13 +249,8 @@ public class PacketHeaders {
             udpBuf.put(udp.payload);
 
             byte[] udpBytes = udpBuf.array();
-            byte[] pseudo = createPseudoHeader(ip.sourceIp, ip.destinationIp, udpBytes.length, (byte) 17);
-
-            byte[] forCheck = new byte[pseudo.length + udpBytes.length];
-            System.arraycopy(pseudo, 0, forCheck, 0, pseudo.length);
-            System.arraycopy(udpBytes, 0, forCheck, pseudo.length, udpBytes.length);
-
-            int checksum = calculateChecksum(forCheck, 0, forCheck.length);
+            long pseudo = pseudoHeaderSum(ip.sourceIp, ip.destinationIp, udpBytes.length, 17);
+            int checksum = ChecksumEngine.finish(ChecksumEngine.sum(udpBytes, 0, udpBytes.length, pseudo));
             udpBuf.putShort(6, (short) checksum);
 
             // Assign to IP payload and build full IP packet
@@ -270,30 +259,23 @@ public class PacketHeaders {
         }
     }
 
-    private static byte[] createPseudoHeader(InetAddress src, InetAddress dest, int length, byte protocol) {
-        ByteBuffer buffer = ByteBuffer.allocate(12);
-        buffer.put(src.getAddress());
-        buffer.put(dest.getAddress());
-        buffer.put((byte) 0);
-        buffer.put(protocol);
-        buffer.putShort((short) length);
-        return buffer.array();
+    // The messages PacketWriter builds in place when refusing a datagram
+    public static class ICMPHeader {
+        public static final int TYPE_DESTINATION_UNREACHABLE = 3;
+        public static final int CODE_PORT_UNREACHABLE = 3;
+
+        // ICMPv6 (RFC 4443) numbers its messages differently
+        public static final int TYPE_V6_DESTINATION_UNREACHABLE = 1;
+        public static final int CODE_V6_PORT_UNREACHABLE = 4;
+    }
+
+    // IPv4 pseudo-header; IPv6 packets are built in place by PacketWriter
+    private static long pseudoHeaderSum(InetAddress src, InetAddress dest, int length, int protocol) {
+        return ChecksumEngine.pseudoHeaderSum(ByteBuffer.wrap(src.getAddress()).getInt(),
+                ByteBuffer.wrap(dest.getAddress()).getInt(), protocol, length);
     }
 
     private static int calculateChecksum(byte[] data, int offset, int length) {
-        int sum = 0;
-        int i = offset;
-        while (i < length - 1) {
-            int word = ((data[i] & 0xFF) << 8) | (data[i + 1] & 0xFF);
-            sum += word;
-            i += 2;
-        }
-        if (length % 2 != 0) {
-            sum += (data[length - 1] & 0xFF) << 8;
-        }
-        while ((sum >> 16) > 0) {
-            sum = (sum & 0xFFFF) + (sum >> 16);
-        }
-        return ~sum & 0xFFFF;
+        return ChecksumEngine.checksum(data, offset, length);
     }
 }
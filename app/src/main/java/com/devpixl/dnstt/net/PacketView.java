@@ -0,0 +1,222 @@
+package com.devpixl.dnstt.net;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Flyweight view over a raw IPv4 or IPv6 packet sitting in a reused read
+ * buffer. All accessors read straight from the backing array, so the TUN
+ * loop can inspect and route a packet without allocating.
+ *
+ * The int address accessors are IPv4 only; IPv6 addresses are read in
+ * place through {@link #sourceAddressOffset()} and
+ * {@link #destinationAddressOffset()}. IPv6 extension headers are skipped
+ * so {@link #protocol()} is always the upper layer protocol.
+ */
+public class PacketView {
+    public static final int PROTOCOL_ICMP = 1;
+    public static final int PROTOCOL_TCP = 6;
+    public static final int PROTOCOL_UDP = 17;
+    public static final int PROTOCOL_ICMPV6 = 58;
+
+    // IPv6 extension headers
+    private static final int HOP_BY_HOP = 0;
+    private static final int ROUTING = 43;
+    private static final int FRAGMENT = 44;
+    private static final int DESTINATION_OPTIONS = 60;
+
+    private byte[] data;
+    private int ipOffset;
+    private boolean ipv6;
+    private int fragmentOffset;
+    private int ipHeaderLength;
+    private int ipTotalLength;
+    private int protocol;
+    private int transportOffset;
+    private int payloadOffset;
+    private int payloadLength;
+
+    /**
+     * Points this view at the first {@code length} bytes of {@code buffer}.
+     * Returns false if they don't hold an IP packet we can handle.
+     */
+    public boolean wrap(ByteBuffer buffer, int length) {
+        return wrap(buffer.array(), buffer.arrayOffset(), length);
+    }
+
+    public boolean wrap(byte[] data, int offset, int length) {
+        this.data = data;
+        this.ipOffset = offset;
+        if (length < 20) return false;
+
+        int versionAndIhl = data[offset] & 0xFF;
+        int version = versionAndIhl >> 4;
+        if (version == 6) {
+            if (!wrapIpv6(length)) return false;
+        } else if (version == 4) {
+            ipv6 = false;
+            int ihl = versionAndIhl & 0x0F;
+            if (ihl < 5) return false;
+
+            ipHeaderLength = ihl * 4;
+            ipTotalLength = getShort(offset + 2);
+            if (ipTotalLength < ipHeaderLength || ipTotalLength > length) return false;
+            protocol = data[offset + 9] & 0xFF;
+            fragmentOffset = getShort(offset + 6) & 0x1FFF;
+        } else {
+            return false;
+        }
+
+        transportOffset = offset + ipHeaderLength;
+        int transportLength = ipTotalLength - ipHeaderLength;
+        // Later fragments carry no transport header, so there is nothing to route them by
+        if (fragmentOffset != 0) return false;
+
+        if (protocol == PROTOCOL_TCP) {
+            if (transportLength < 20) return false;
+            int headerLength = ((data[transportOffset + 12] & 0xFF) >> 4) * 4;
+            if (headerLength < 20 || headerLength > transportLength) return false;
+            payloadOffset = transportOffset + headerLength;
+            payloadLength = transportLength - headerLength;
+        } else if (protocol == PROTOCOL_UDP) {
+            if (transportLength < 8) return false;
+            int udpLength = Math.min(getShort(transportOffset + 4), transportLength);
+            payloadOffset = transportOffset + 8;
+            payloadLength = Math.max(udpLength - 8, 0);
+        } else {
+            payloadOffset = transportOffset;
+            payloadLength = transportLength;
+        }
+        return true;
+    }
+
+    // Fixed header plus any extension headers in front of the upper layer one
+    private boolean wrapIpv6(int length) {
+        ipv6 = true;
+        fragmentOffset = 0;
+        if (length < PacketWriter.IPV6_HEADER_SIZE) return false;
+        ipTotalLength = PacketWriter.IPV6_HEADER_SIZE + getShort(ipOffset + 4);
+        if (ipTotalLength > length) return false;
+
+        int next = data[ipOffset + 6] & 0xFF;
+        int position = ipOffset + PacketWriter.IPV6_HEADER_SIZE;
+        int end = ipOffset + ipTotalLength;
+        while (next == HOP_BY_HOP || next == ROUTING || next == DESTINATION_OPTIONS || next == FRAGMENT) {
+            if (position + 8 > end) return false;
+            int headerLength;
+            if (next == FRAGMENT) {
+                fragmentOffset = getShort(position + 2) >> 3;
+                headerLength = 8;
+            } else {
+                headerLength = ((data[position + 1] & 0xFF) + 1) * 8;
+            }
+            next = data[position] & 0xFF;
+            position += headerLength;
+        }
+        if (position > end) return false;
+        protocol = next;
+        ipHeaderLength = position - ipOffset;
+        return true;
+    }
+
+    // --- IP ---
+
+    public boolean isIpv6() { return ipv6; }
+
+    public byte[] array() { return data; }
+    public int ipOffset() { return ipOffset; }
+    public int ipTotalLength() { return ipTotalLength; }
+    public int protocol() { return protocol; }
+    public int sourceAddress() { return getInt(ipOffset + 12); }
+    public int destinationAddress() { return getInt(ipOffset + 16); }
+
+    /** Absolute offset of the source address in {@link #array()}: 4 bytes for IPv4, 16 for IPv6. */
+    public int sourceAddressOffset() { return ipOffset + (ipv6 ? 8 : 12); }
+    public int destinationAddressOffset() { return ipOffset + (ipv6 ? 24 : 16); }
+
+    public byte[] copySourceAddress() {
+        return Arrays.copyOfRange(data, sourceAddressOffset(), sourceAddressOffset() + (ipv6 ? 16 : 4));
+    }
+
+    public byte[] copyDestinationAddress() {
+        return Arrays.copyOfRange(data, destinationAddressOffset(), destinationAddressOffset() + (ipv6 ? 16 : 4));
+    }
+
+    /** Multicast, or the IPv4 limited broadcast address. Never worth an error or a relay. */
+    public boolean isMulticastOrBroadcast() {
+        if (ipv6) return data[ipOffset + 24] == (byte) 0xFF;
+        int destination = destinationAddress();
+        return (destination >>> 28) == 0xE || destination == -1;
+    }
+
+    // --- TCP / UDP ---
+
+    public int sourcePort() { return getShort(transportOffset); }
+    public int destinationPort() { return getShort(transportOffset + 2); }
+
+    public long sequenceNumber() { return getInt(transportOffset + 4) & 0xFFFFFFFFL; }
+    public long acknowledgmentNumber() { return getInt(transportOffset + 8) & 0xFFFFFFFFL; }
+    public int tcpFlags() { return getShort(transportOffset + 12) & 0x1FF; }
+    public int windowSize() { return getShort(transportOffset + 14); }
+
+    /** MSS from the TCP options, or 0 if the segment doesn't carry one (normally only SYNs do). */
+    public int tcpMaxSegmentSize() {
+        int i = transportOffset + 20;
+        while (i < payloadOffset) {
+            int kind = data[i] & 0xFF;
+            if (kind == 0) break;
+            if (kind == 1) {
+                i++;
+                continue;
+            }
+            if (i + 1 >= payloadOffset) break;
+            int length = data[i + 1] & 0xFF;
+            if (length < 2 || i + length > payloadOffset) break;
+            if (kind == 2 && length == 4) return getShort(i + 2);
+            i += length;
+        }
+        return 0;
+    }
+
+    public boolean isSYN() { return (tcpFlags() & PacketHeaders.TCPHeader.FLAG_SYN) != 0; }
+    public boolean isACK() { return (tcpFlags() & PacketHeaders.TCPHeader.FLAG_ACK) != 0; }
+    public boolean isFIN() { return (tcpFlags() & PacketHeaders.TCPHeader.FLAG_FIN) != 0; }
+    public boolean isRST() { return (tcpFlags() & PacketHeaders.TCPHeader.FLAG_RST) != 0; }
+
+    /** Absolute offset of the TCP/UDP payload in {@link #array()}. */
+    public int payloadOffset() { return payloadOffset; }
+    public int payloadLength() { return payloadLength; }
+
+    public byte[] copyPayload() {
+        return Arrays.copyOfRange(data, payloadOffset, payloadOffset + payloadLength);
+    }
+
+    /** Address bytes as text, either family; never does a lookup. */
+    public static String formatAddress(byte[] address) {
+        if (address.length == 4) {
+            return formatAddress(((address[0] & 0xFF) << 24) | ((address[1] & 0xFF) << 16)
+                    | ((address[2] & 0xFF) << 8) | (address[3] & 0xFF));
+        }
+        try {
+            return InetAddress.getByAddress(address).getHostAddress();
+        } catch (UnknownHostException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static String formatAddress(int address) {
+        return ((address >>> 24) & 0xFF) + "." + ((address >>> 16) & 0xFF) + "."
+                + ((address >>> 8) & 0xFF) + "." + (address & 0xFF);
+    }
+
+    private int getShort(int index) {
+        return ((data[index] & 0xFF) << 8) | (data[index + 1] & 0xFF);
+    }
+
+    private int getInt(int index) {
+        return ((data[index] & 0xFF) << 24) | ((data[index + 1] & 0xFF) << 16)
+                | ((data[index + 2] & 0xFF) << 8) | (data[index + 3] & 0xFF);
+    }
+}
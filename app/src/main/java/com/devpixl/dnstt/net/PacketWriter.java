@@ -0,0 +1,256 @@
+package com.devpixl.dnstt.net;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Serializes outbound IPv4 and IPv6 packets in place. Callers put the
+ * payload at {@link #HEADER_ROOM} in a (pooled) buffer, and the writer
+ * fills in the transport and IP headers right in front of it. On return the
+ * buffer's position/limit frame the finished packet, ready for a single
+ * write(). IPv4 packets leave the first 20 bytes of the room unused.
+ */
+public final class PacketWriter {
+    public static final int IPV4_HEADER_SIZE = 20;
+    public static final int IPV6_HEADER_SIZE = 40;
+    public static final int TCP_HEADER_SIZE = 20;
+    public static final int UDP_HEADER_SIZE = 8;
+    public static final int ICMP_HEADER_SIZE = 8;
+
+    /** Offset of the payload in every buffer handed to the writer; fits the largest header pair, IPv6 + TCP. */
+    public static final int HEADER_ROOM = IPV6_HEADER_SIZE + TCP_HEADER_SIZE;
+
+    /** The least an IPv6 link carries (RFC 8200), which bounds what an ICMPv6 error may quote. */
+    private static final int IPV6_MIN_MTU = 1280;
+
+    private static final AtomicInteger identification = new AtomicInteger();
+
+    private PacketWriter() {}
+
+    public static void writeTcp(ByteBuffer buffer, int payloadLength,
+                                int sourceAddress, int sourcePort,
+                                int destinationAddress, int destinationPort,
+                                long sequenceNumber, long acknowledgmentNumber,
+                                int flags, int windowSize) {
+        byte[] data = buffer.array();
+        int tcpOffset = buffer.arrayOffset() + HEADER_ROOM - TCP_HEADER_SIZE;
+        int ipOffset = tcpOffset - IPV4_HEADER_SIZE;
+        int tcpLength = TCP_HEADER_SIZE + payloadLength;
+
+        long pseudo = ChecksumEngine.pseudoHeaderSum(sourceAddress, destinationAddress, PacketView.PROTOCOL_TCP, tcpLength);
+        writeTcpHeader(data, tcpOffset, tcpLength, pseudo, sourcePort, destinationPort,
+                sequenceNumber, acknowledgmentNumber, flags, windowSize);
+
+        writeIpv4(data, ipOffset, IPV4_HEADER_SIZE + tcpLength, PacketView.PROTOCOL_TCP,
+                sourceAddress, destinationAddress);
+        frame(buffer, ipOffset, IPV4_HEADER_SIZE + tcpLength);
+    }
+
+    /** {@link #writeTcp} for IPv6; the addresses are 16 byte arrays. */
+    public static void writeTcp6(ByteBuffer buffer, int payloadLength,
+                                 byte[] sourceAddress, int sourcePort,
+                                 byte[] destinationAddress, int destinationPort,
+                                 long sequenceNumber, long acknowledgmentNumber,
+                                 int flags, int windowSize) {
+        byte[] data = buffer.array();
+        int tcpOffset = buffer.arrayOffset() + HEADER_ROOM - TCP_HEADER_SIZE;
+        int ipOffset = tcpOffset - IPV6_HEADER_SIZE;
+        int tcpLength = TCP_HEADER_SIZE + payloadLength;
+
+        long pseudo = ChecksumEngine.pseudoHeaderSum6(sourceAddress, 0, destinationAddress, 0,
+                PacketView.PROTOCOL_TCP, tcpLength);
+        writeTcpHeader(data, tcpOffset, tcpLength, pseudo, sourcePort, destinationPort,
+                sequenceNumber, acknowledgmentNumber, flags, windowSize);
+
+        writeIpv6(data, ipOffset, tcpLength, PacketView.PROTOCOL_TCP, sourceAddress, 0, destinationAddress, 0);
+        frame(buffer, ipOffset, IPV6_HEADER_SIZE + tcpLength);
+    }
+
+    private static void writeTcpHeader(byte[] data, int tcpOffset, int tcpLength, long pseudo,
+                                       int sourcePort, int destinationPort,
+                                       long sequenceNumber, long acknowledgmentNumber,
+                                       int flags, int windowSize) {
+        putShort(data, tcpOffset, sourcePort);
+        putShort(data, tcpOffset + 2, destinationPort);
+        putInt(data, tcpOffset + 4, (int) sequenceNumber);
+        putInt(data, tcpOffset + 8, (int) acknowledgmentNumber);
+        putShort(data, tcpOffset + 12, (5 << 12) | flags);
+        putShort(data, tcpOffset + 14, windowSize);
+        putShort(data, tcpOffset + 16, 0);
+        putShort(data, tcpOffset + 18, 0);
+        putShort(data, tcpOffset + 16, ChecksumEngine.finish(ChecksumEngine.sum(data, tcpOffset, tcpLength, pseudo)));
+    }
+
+    public static void writeUdp(ByteBuffer buffer, int payloadLength,
+                                int sourceAddress, int sourcePort,
+                                int destinationAddress, int destinationPort) {
+        byte[] data = buffer.array();
+        int udpOffset = buffer.arrayOffset() + HEADER_ROOM - UDP_HEADER_SIZE;
+        int ipOffset = udpOffset - IPV4_HEADER_SIZE;
+        int udpLength = UDP_HEADER_SIZE + payloadLength;
+
+        long pseudo = ChecksumEngine.pseudoHeaderSum(sourceAddress, destinationAddress, PacketView.PROTOCOL_UDP, udpLength);
+        writeUdpHeader(data, udpOffset, udpLength, pseudo, sourcePort, destinationPort);
+
+        writeIpv4(data, ipOffset, IPV4_HEADER_SIZE + udpLength, PacketView.PROTOCOL_UDP,
+                sourceAddress, destinationAddress);
+        frame(buffer, ipOffset, IPV4_HEADER_SIZE + udpLength);
+    }
+
+    /** {@link #writeUdp} for IPv6; the addresses are 16 byte arrays. */
+    public static void writeUdp6(ByteBuffer buffer, int payloadLength,
+                                 byte[] sourceAddress, int sourcePort,
+                                 byte[] destinationAddress, int destinationPort) {
+        byte[] data = buffer.array();
+        int udpOffset = buffer.arrayOffset() + HEADER_ROOM - UDP_HEADER_SIZE;
+        int ipOffset = udpOffset - IPV6_HEADER_SIZE;
+        int udpLength = UDP_HEADER_SIZE + payloadLength;
+
+        long pseudo = ChecksumEngine.pseudoHeaderSum6(sourceAddress, 0, destinationAddress, 0,
+                PacketView.PROTOCOL_UDP, udpLength);
+        writeUdpHeader(data, udpOffset, udpLength, pseudo, sourcePort, destinationPort);
+
+        writeIpv6(data, ipOffset, udpLength, PacketView.PROTOCOL_UDP, sourceAddress, 0, destinationAddress, 0);
+        frame(buffer, ipOffset, IPV6_HEADER_SIZE + udpLength);
+    }
+
+    private static void writeUdpHeader(byte[] data, int udpOffset, int udpLength, long pseudo,
+                                       int sourcePort, int destinationPort) {
+        putShort(data, udpOffset, sourcePort);
+        putShort(data, udpOffset + 2, destinationPort);
+        putShort(data, udpOffset + 4, udpLength);
+        putShort(data, udpOffset + 6, 0);
+        int checksum = ChecksumEngine.finish(ChecksumEngine.sum(data, udpOffset, udpLength, pseudo));
+        // A computed zero is sent as all ones; zero means "no checksum" for UDP, and IPv6 forbids it
+        putShort(data, udpOffset + 6, checksum == 0 ? 0xFFFF : checksum);
+    }
+
+    /**
+     * Builds an ICMP destination unreachable error for the IPv4 packet in
+     * {@code original[offset, offset + length)}, sent from
+     * {@code sourceAddress} back to the packet's sender. As RFC 792 asks, the
+     * error quotes the original IP header and the first 8 bytes after it,
+     * which is what the sender's stack needs to find the socket.
+     */
+    public static void writeIcmpUnreachable(ByteBuffer buffer, int code, byte[] original, int offset, int length,
+                                            int sourceAddress) {
+        byte[] data = buffer.array();
+        int payloadOffset = buffer.arrayOffset() + HEADER_ROOM;
+        int icmpOffset = payloadOffset - ICMP_HEADER_SIZE;
+        int ipOffset = icmpOffset - IPV4_HEADER_SIZE;
+        int quoted = Math.min(length, (original[offset] & 0x0F) * 4 + 8);
+        int icmpLength = ICMP_HEADER_SIZE + quoted;
+
+        System.arraycopy(original, offset, data, payloadOffset, quoted);
+        data[icmpOffset] = (byte) PacketHeaders.ICMPHeader.TYPE_DESTINATION_UNREACHABLE;
+        data[icmpOffset + 1] = (byte) code;
+        putShort(data, icmpOffset + 2, 0);
+        putInt(data, icmpOffset + 4, 0);
+        // No pseudo-header for ICMPv4
+        putShort(data, icmpOffset + 2, ChecksumEngine.checksum(data, icmpOffset, icmpLength));
+
+        writeIpv4(data, ipOffset, IPV4_HEADER_SIZE + icmpLength, PacketView.PROTOCOL_ICMP,
+                sourceAddress, getInt(original, offset + 12));
+        frame(buffer, ipOffset, IPV4_HEADER_SIZE + icmpLength);
+    }
+
+    /**
+     * ICMPv6 destination unreachable (RFC 4443) for the IPv6 packet in
+     * {@code original[offset, offset + length)}, sent back to its sender
+     * from the address it was sent to. The error quotes as much of the
+     * packet as fits in the IPv6 minimum MTU.
+     */
+    public static void writeIcmp6Unreachable(ByteBuffer buffer, int code, byte[] original, int offset, int length) {
+        byte[] data = buffer.array();
+        int payloadOffset = buffer.arrayOffset() + HEADER_ROOM;
+        int icmpOffset = payloadOffset - ICMP_HEADER_SIZE;
+        int ipOffset = icmpOffset - IPV6_HEADER_SIZE;
+        int quoted = Math.min(length, Math.min(IPV6_MIN_MTU - IPV6_HEADER_SIZE - ICMP_HEADER_SIZE,
+                buffer.capacity() - HEADER_ROOM));
+        int icmpLength = ICMP_HEADER_SIZE + quoted;
+
+        System.arraycopy(original, offset, data, payloadOffset, quoted);
+        data[icmpOffset] = (byte) PacketHeaders.ICMPHeader.TYPE_V6_DESTINATION_UNREACHABLE;
+        data[icmpOffset + 1] = (byte) code;
+        putShort(data, icmpOffset + 2, 0);
+        putInt(data, icmpOffset + 4, 0);
+        // Unlike ICMPv4, ICMPv6 sums a pseudo-header; our source is the original destination
+        long pseudo = ChecksumEngine.pseudoHeaderSum6(original, offset + 24, original, offset + 8,
+                PacketView.PROTOCOL_ICMPV6, icmpLength);
+        putShort(data, icmpOffset + 2, ChecksumEngine.finish(ChecksumEngine.sum(data, icmpOffset, icmpLength, pseudo)));
+
+        writeIpv6(data, ipOffset, icmpLength, PacketView.PROTOCOL_ICMPV6, original, offset + 24, original, offset + 8);
+        frame(buffer, ipOffset, IPV6_HEADER_SIZE + icmpLength);
+    }
+
+    /** Sequence number of a segment previously built by {@link #writeTcp}. */
+    public static long tcpSequenceNumber(ByteBuffer packet) {
+        int tcpOffset = packet.arrayOffset() + HEADER_ROOM - TCP_HEADER_SIZE;
+        return getInt(packet.array(), tcpOffset + 4) & 0xFFFFFFFFL;
+    }
+
+    /**
+     * Rewrites the acknowledgment number of a segment built by {@link #writeTcp},
+     * patching the checksum incrementally instead of summing the payload again.
+     */
+    public static void updateTcpAcknowledgment(ByteBuffer packet, long acknowledgmentNumber) {
+        byte[] data = packet.array();
+        int tcpOffset = packet.arrayOffset() + HEADER_ROOM - TCP_HEADER_SIZE;
+        int oldAck = getInt(data, tcpOffset + 8);
+        int newAck = (int) acknowledgmentNumber;
+        if (oldAck == newAck) return;
+
+        int checksum = ((data[tcpOffset + 16] & 0xFF) << 8) | (data[tcpOffset + 17] & 0xFF);
+        putInt(data, tcpOffset + 8, newAck);
+        putShort(data, tcpOffset + 16, ChecksumEngine.update32(checksum, oldAck, newAck));
+    }
+
+    private static void writeIpv4(byte[] data, int offset, int totalLength, int protocol,
+                                  int sourceAddress, int destinationAddress) {
+        data[offset] = (byte) 0x45;
+        data[offset + 1] = 0;
+        putShort(data, offset + 2, totalLength);
+        putShort(data, offset + 4, identification.getAndIncrement());
+        putShort(data, offset + 6, 0);
+        data[offset + 8] = 64;
+        data[offset + 9] = (byte) protocol;
+        putShort(data, offset + 10, 0);
+        putInt(data, offset + 12, sourceAddress);
+        putInt(data, offset + 16, destinationAddress);
+        putShort(data, offset + 10, ChecksumEngine.checksum(data, offset, IPV4_HEADER_SIZE));
+    }
+
+    private static void writeIpv6(byte[] data, int offset, int payloadLength, int nextHeader,
+                                  byte[] source, int sourceOffset, byte[] destination, int destinationOffset) {
+        // Version 6, no traffic class or flow label
+        putInt(data, offset, 6 << 28);
+        putShort(data, offset + 4, payloadLength);
+        data[offset + 6] = (byte) nextHeader;
+        data[offset + 7] = 64;
+        System.arraycopy(source, sourceOffset, data, offset + 8, 16);
+        System.arraycopy(destination, destinationOffset, data, offset + 24, 16);
+    }
+
+    private static void frame(ByteBuffer buffer, int arrayStart, int length) {
+        int start = arrayStart - buffer.arrayOffset();
+        buffer.limit(start + length);
+        buffer.position(start);
+    }
+
+    private static void putShort(byte[] data, int index, int value) {
+        data[index] = (byte) (value >>> 8);
+        data[index + 1] = (byte) value;
+    }
+
+    private static void putInt(byte[] data, int index, int value) {
+        data[index] = (byte) (value >>> 24);
+        data[index + 1] = (byte) (value >>> 16);
+        data[index + 2] = (byte) (value >>> 8);
+        data[index + 3] = (byte) value;
+    }
+
+    private static int getInt(byte[] data, int index) {
+        return ((data[index] & 0xFF) << 24) | ((data[index + 1] & 0xFF) << 16)
+                | ((data[index + 2] & 0xFF) << 8) | (data[index + 3] & 0xFF);
+    }
+}
@@ -0,0 +1,155 @@
+package com.devpixl.dnstt.net;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Locale;
+
+/**
+ * The resolvers a dnstt client may tunnel through, each with a rolling
+ * latency and loss score. Samples come from two places: direct probes
+ * through a {@link Prober}, and the DNS queries the tunnel itself carried
+ * while an instance was using the resolver. Both feed the same moving
+ * averages, so a resolver that starts rate-limiting shows up in its score
+ * within a round or two.
+ *
+ * A score is the expected time to an answer: latency plus a fixed penalty
+ * per lost query. An instance is moved only when its resolver is losing
+ * queries outright or a candidate scores less than half as much, so two
+ * similar resolvers don't trade places on every round.
+ */
+public class ResolverPool {
+    public interface Prober {
+        /** Round-trip time to {@code resolver} in milliseconds, or -1 if it didn't answer. */
+        long probe(String resolver);
+    }
+
+    // Weight of the newest sample in the moving averages
+    private static final double ALPHA = 0.3;
+    private static final double LOSS_PENALTY_MS = 2000;
+    private static final double DEGRADED_LOSS = 0.3;
+    private static final double SWITCH_RATIO = 0.5;
+
+    private final String[] resolvers;
+    private final Prober prober;
+    // Guarded by this; NaN until the first sample
+    private final double[] latency;
+    private final double[] loss;
+
+    public ResolverPool(String[] resolvers, Prober prober) {
+        this.resolvers = resolvers.clone();
+        this.prober = prober;
+        this.latency = new double[resolvers.length];
+        this.loss = new double[resolvers.length];
+        Arrays.fill(latency, Double.NaN);
+        Arrays.fill(loss, Double.NaN);
+    }
+
+    /** Splits a comma separated list, dropping blanks. */
+    public static String[] parse(String list) {
+        ArrayList<String> resolvers = new ArrayList<>();
+        for (String part : list.split(",")) {
+            part = part.trim();
+            if (!part.isEmpty()) resolvers.add(part);
+        }
+        return resolvers.toArray(new String[0]);
+    }
+
+    public int size() {
+        return resolvers.length;
+    }
+
+    public String resolver(int index) {
+        return resolvers[index];
+    }
+
+    /** Probes every resolver once, one after another. Blocks for up to the prober's timeout each. */
+    public void probeAll() {
+        for (int i = 0; i < resolvers.length; i++) {
+            long rtt = prober.probe(resolvers[i]);
+            synchronized (this) {
+                sample(i, rtt >= 0 ? rtt : Double.NaN, rtt >= 0 ? 0 : 1);
+            }
+        }
+    }
+
+    /**
+     * Counts what the tunnel saw through {@code resolver} since the last
+     * call: {@code answers} queries answered in {@code answerMillis} total,
+     * and {@code losses} never answered.
+     */
+    public synchronized void recordTunnel(String resolver, long answers, long answerMillis, long losses) {
+        int index = indexOf(resolver);
+        if (index < 0 || answers + losses == 0) return;
+        sample(index, answers > 0 ? (double) answerMillis / answers : Double.NaN,
+                (double) losses / (answers + losses));
+    }
+
+    private void sample(int index, double rttMillis, double lossRatio) {
+        if (!Double.isNaN(rttMillis)) {
+            latency[index] = Double.isNaN(latency[index]) ? rttMillis : latency[index] + ALPHA * (rttMillis - latency[index]);
+        }
+        loss[index] = Double.isNaN(loss[index]) ? lossRatio : loss[index] + ALPHA * (lossRatio - loss[index]);
+    }
+
+    // Unsampled resolvers rank last; one that never answered is as bad as it gets
+    private double score(int index) {
+        if (Double.isNaN(loss[index])) return Double.MAX_VALUE;
+        double base = Double.isNaN(latency[index]) ? LOSS_PENALTY_MS : latency[index];
+        return base + loss[index] * LOSS_PENALTY_MS;
+    }
+
+    private int indexOf(String resolver) {
+        for (int i = 0; i < resolvers.length; i++) {
+            if (resolvers[i].equals(resolver)) return i;
+        }
+        return -1;
+    }
+
+    /** The best scoring resolver not in {@code exclude}, or null if there is none. */
+    public synchronized String best(Collection<String> exclude) {
+        int best = -1;
+        for (int i = 0; i < resolvers.length; i++) {
+            if (exclude.contains(resolvers[i])) continue;
+            if (best < 0 || score(i) < score(best)) best = i;
+        }
+        return best < 0 ? null : resolvers[best];
+    }
+
+    /**
+     * The resolver an instance on {@code current} should move to, or null
+     * to stay. Resolvers in {@code inUse} by other instances are taken
+     * only when no free one is left.
+     */
+    public synchronized String replacementFor(String current, Collection<String> inUse) {
+        int index = indexOf(current);
+        HashSet<String> taken = new HashSet<>(inUse);
+        taken.add(current);
+        String candidate = best(taken);
+        if (candidate == null) candidate = best(Collections.singleton(current));
+        if (candidate == null || index < 0) return candidate;
+        double currentScore = score(index);
+        double candidateScore = score(indexOf(candidate));
+        if (candidateScore >= currentScore) return null;
+        boolean degraded = !Double.isNaN(loss[index]) && loss[index] >= DEGRADED_LOSS;
+        return degraded || candidateScore < currentScore * SWITCH_RATIO ? candidate : null;
+    }
+
+    /** Every resolver's score on one line, for the log. */
+    public synchronized String describe() {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < resolvers.length; i++) {
+            if (i > 0) text.append(", ");
+            text.append(resolvers[i]).append(' ');
+            if (Double.isNaN(loss[i])) {
+                text.append("unprobed");
+            } else {
+                text.append(Double.isNaN(latency[i]) ? "-" : String.valueOf(Math.round(latency[i])))
+                        .append(" ms ").append(String.format(Locale.US, "%.0f%%", loss[i] * 100)).append(" loss");
+            }
+        }
+        return text.toString();
+    }
+}
@@ -2,144 +2,514 @@ package com.devpixl.dnstt.net;
 
 import android.util.Log;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.InetSocketAddress;
-import java.net.Socket;
-import java.util.Arrays;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * One SOCKS5 CONNECT tunnel, or the control connection of a UDP ASSOCIATE
+ * (see {@link #udpAssociate}), driven by a {@link SocksRelay} event loop.
+ * Handshake, reads and queued writes all run on the loop thread; only
+ * {@link #send}, the read pause/resume calls and {@link #disconnect} are
+ * called from elsewhere.
+ */
 public class Socks5Client {
     private static final String TAG = "Socks5Client";
-    private static final byte SOCKS_VERSION = 5;
-    private static final byte AUTH_METHOD_NONE = 0;
-    private static final byte CMD_CONNECT = 1;
-    private static final byte ADDR_TYPE_DOMAIN = 3;
 
-    private final String proxyHost;
-    private final int proxyPort;
+    private static final long HANDSHAKE_TIMEOUT_MS = 30000;
+    // Bound the work done for one flow per wakeup so a busy flow can't starve the rest
+    private static final int READS_PER_WAKEUP = 16;
+
+    private enum Phase { IDLE, CONNECTING, GREETING, COMMAND, RELAYING, CLOSED }
+
+    private final SocksRelay.EventLoop loop;
+    private final BufferPool bufferPool;
+    private final InetSocketAddress proxyAddress;
+    private final byte command;
     private final String targetHost;
+    // Set instead of targetHost for an address literal, sent as ATYP 1 or 4
+    private final byte[] targetAddress;
     private final int targetPort;
+    private volatile InetSocketAddress boundAddress;
+
+    // Loop thread only, apart from the reads of channel and phase
+    private volatile SocketChannel channel;
+    private SelectionKey key;
+    private volatile Phase phase = Phase.IDLE;
+    private ByteBuffer reply;
+    private long handshakeDeadline;
+    private long handshakeStartedAt;
+    private ConnectCallback connectCallback;
+    // The channel came greeted from the relay's connection pool
+    private boolean warm;
 
-    private Socket socket;
-    private InputStream inputStream;
-    private OutputStream outputStream;
-    private volatile boolean shouldRun = true;
+    // Upstream bytes the socket didn't take yet, guarded by writeLock
+    private final Object writeLock = new Object();
+    private final ArrayDeque<ByteBuffer> pendingWrites = new ArrayDeque<>(4);
+    private int pendingBytes;
+    // Shared total the backlog is mirrored into, e.g. per tunnel instance
+    private AtomicLong backlogCounter;
+    // shutdownOutput() was called, and the socket's output has actually been shut down
+    private boolean outputClosing;
+    private boolean outputShutDown;
+
+    private final boolean pipelined;
+    private volatile int maxReadSize;
+    private volatile boolean readPaused;
+    private volatile boolean closed;
 
     public interface DataCallback {
-        void onDataReceived(byte[] data);
+        /**
+         * Called with a pooled buffer holding {@code length} bytes at
+         * {@link PacketWriter#HEADER_ROOM}. The callee owns the buffer and
+         * must return it to the pool.
+         */
+        void onDataReceived(ByteBuffer buffer, int length);
+    }
+
+    public interface ConnectCallback {
+        void onConnectResult(boolean success);
     }
 
     public DataCallback onDataReceived;
+    /** Runs on the loop thread when upstream closes or fails after the tunnel was set up. */
+    public Runnable onClosed;
+    /** Runs on the loop thread once queued upstream bytes have all been written. */
+    public Runnable onSendDrained;
 
-    public Socks5Client(String proxyHost, int proxyPort, String targetHost, int targetPort) {
-        this.proxyHost = proxyHost;
-        this.proxyPort = proxyPort;
+    /** CONNECT to a host name, which the proxy resolves. */
+    public Socks5Client(SocksRelay relay, String proxyHost, int proxyPort, String targetHost, int targetPort) {
+        this(relay, proxyHost, proxyPort, Socks5Protocol.CMD_CONNECT, targetHost, null, targetPort);
+    }
+
+    /** CONNECT to a 4 byte IPv4 or 16 byte IPv6 address. */
+    public Socks5Client(SocksRelay relay, String proxyHost, int proxyPort, byte[] targetAddress, int targetPort) {
+        this(relay, proxyHost, proxyPort, Socks5Protocol.CMD_CONNECT, null, targetAddress, targetPort);
+    }
+
+    private Socks5Client(SocksRelay relay, String proxyHost, int proxyPort, byte command,
+                         String targetHost, byte[] targetAddress, int targetPort) {
+        this.loop = relay.nextLoop();
+        this.bufferPool = relay.bufferPool();
+        this.proxyAddress = new InetSocketAddress(proxyHost, proxyPort);
+        this.command = command;
         this.targetHost = targetHost;
+        this.targetAddress = targetAddress;
         this.targetPort = targetPort;
+        this.maxReadSize = bufferPool.bufferSize() - PacketWriter.HEADER_ROOM;
+        this.pipelined = relay.pipelinedHandshake();
     }
 
-    public boolean connect() {
-        try {
-            socket = new Socket();
-            socket.connect(new InetSocketAddress(proxyHost, proxyPort), 30000);
-            socket.setSoTimeout(60000);
-            socket.setTcpNoDelay(true);
-            inputStream = socket.getInputStream();
-            outputStream = socket.getOutputStream();
-
-            if (!handshake()) {
-                Log.e(TAG, "SOCKS5 handshake failed");
-                disconnect();
-                return false;
-            }
+    /**
+     * A UDP ASSOCIATE instead of a CONNECT. Once connected,
+     * {@link #boundAddress()} is the proxy's UDP relay endpoint, which stays
+     * usable for as long as this connection is open; {@link #onClosed} tells
+     * when it isn't any more.
+     */
+    public static Socks5Client udpAssociate(SocksRelay relay, String proxyHost, int proxyPort) {
+        return new Socks5Client(relay, proxyHost, proxyPort, Socks5Protocol.CMD_UDP_ASSOCIATE, null, null, 0);
+    }
 
-            if (!sendCommand()) {
-                Log.e(TAG, "SOCKS5 command failed");
-                disconnect();
-                return false;
-            }
+    /**
+     * Where the proxy relays datagrams for a UDP ASSOCIATE, or null before
+     * the reply. An unspecified bound address is replaced with the proxy's.
+     */
+    public InetSocketAddress boundAddress() {
+        return boundAddress;
+    }
+
+    /** Caps every read from upstream, e.g. to the flow's MSS. */
+    public void setMaxReadSize(int maxReadSize) {
+        this.maxReadSize = Math.min(maxReadSize, bufferPool.bufferSize() - PacketWriter.HEADER_ROOM);
+    }
+
+    /** Stops reading from upstream until {@link #resumeReading()}, leaving the data in the socket buffers. */
+    public void pauseReading() {
+        if (readPaused) return;
+        readPaused = true;
+        loop.execute(this::updateInterest);
+    }
+
+    public void resumeReading() {
+        if (!readPaused) return;
+        readPaused = false;
+        loop.execute(this::updateInterest);
+    }
+
+    /** Also counts this client's write backlog in {@code counter}, which many clients may share. */
+    public void setBacklogCounter(AtomicLong counter) {
+        synchronized (writeLock) {
+            backlogCounter = counter;
+        }
+    }
 
-            // Start reading in background
-            new Thread(this::readLoop).start();
-            return true;
+    /** Upstream bytes accepted by {@link #send} but not yet written to the socket. */
+    public int pendingBytes() {
+        synchronized (writeLock) {
+            return pendingBytes;
+        }
+    }
+
+    /**
+     * Opens the tunnel without blocking. {@code callback} runs on the loop
+     * thread once the command reply arrived, or on failure or timeout.
+     */
+    public void connect(ConnectCallback callback) {
+        loop.execute(() -> startConnect(callback));
+    }
+
+    private void startConnect(ConnectCallback callback) {
+        connectCallback = callback;
+        if (closed) {
+            fail("closed before connect");
+            return;
+        }
+        handshakeStartedAt = System.nanoTime();
+        handshakeDeadline = System.currentTimeMillis() + HANDSHAKE_TIMEOUT_MS;
+        loop.trackHandshake(this);
 
+        SelectionKey warmKey = loop.takeWarmConnection(proxyAddress);
+        if (warmKey != null) {
+            try {
+                warm = true;
+                key = warmKey;
+                key.attach(this);
+                channel = (SocketChannel) key.channel();
+                phase = Phase.COMMAND;
+                reply = ByteBuffer.allocate(Socks5Protocol.MAX_REPLY_SIZE);
+                writeHandshake(commandRequest(false));
+                key.interestOps(SelectionKey.OP_READ);
+            } catch (IOException e) {
+                fail(e.getMessage());
+            }
+            return;
+        }
+        openChannel();
+    }
+
+    private void openChannel() {
+        try {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            phase = Phase.CONNECTING;
+            boolean connected = channel.connect(proxyAddress);
+            key = channel.register(loop.selector, connected ? 0 : SelectionKey.OP_CONNECT, this);
+            // disconnect() may have run before the channel was published
+            if (closed) {
+                fail("closed during connect");
+                return;
+            }
+            if (connected) onConnected();
         } catch (IOException e) {
-            Log.e(TAG, "Connection failed: " + e.getMessage());
-            disconnect();
-            return false;
+            fail("Connection failed: " + e.getMessage());
         }
     }
 
-    private boolean handshake() throws IOException {
-        outputStream.write(new byte[]{SOCKS_VERSION, 1, AUTH_METHOD_NONE});
-        outputStream.flush();
+    private void onConnected() throws IOException {
+        phase = Phase.GREETING;
+        // Room for both replies, which can arrive together when pipelined
+        reply = ByteBuffer.allocate(Socks5Protocol.METHOD_REPLY_SIZE + Socks5Protocol.MAX_REPLY_SIZE);
+        writeHandshake(pipelined ? commandRequest(true) : Socks5Protocol.greeting());
+        key.interestOps(SelectionKey.OP_READ);
+    }
+
+    private byte[] commandRequest(boolean withGreeting) {
+        if (command == Socks5Protocol.CMD_UDP_ASSOCIATE) {
+            return withGreeting ? Socks5Protocol.greetingAndUdpAssociate() : Socks5Protocol.udpAssociateRequest();
+        }
+        if (targetAddress != null) {
+            return withGreeting
+                    ? Socks5Protocol.greetingAndConnect(targetAddress, targetPort)
+                    : Socks5Protocol.connectRequest(targetAddress, targetPort);
+        }
+        return withGreeting
+                ? Socks5Protocol.greetingAndConnect(targetHost, targetPort)
+                : Socks5Protocol.connectRequest(targetHost, targetPort);
+    }
 
-        byte[] response = new byte[2];
-        int read = inputStream.read(response);
-        return read == 2 && response[0] == SOCKS_VERSION && response[1] == AUTH_METHOD_NONE;
+    // Handshake messages are tiny and go out on an otherwise idle socket
+    private void writeHandshake(byte[] message) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(message);
+        channel.write(buffer);
+        if (buffer.hasRemaining()) throw new IOException("Short handshake write");
     }
 
-    private boolean sendCommand() throws IOException {
-        byte[] domainBytes = targetHost.getBytes();
-        int len = 7 + domainBytes.length;
-        // 1(ver) + 1(cmd) + 1(rsv) + 1(type) + 1(len) + domain + 2(port)
+    /**
+     * Reads handshake replies, which may arrive split across several reads
+     * or, when pipelined, both in one.
+     */
+    private void readHandshake() throws IOException {
+        if (channel.read(reply) < 0) throw new IOException("Proxy closed during handshake");
+        byte[] data = reply.array();
 
-        java.io.ByteArrayOutputStream buffer = new java.io.ByteArrayOutputStream();
-        buffer.write(SOCKS_VERSION);
-        buffer.write(CMD_CONNECT);
-        buffer.write(0); // Reserved
-        buffer.write(ADDR_TYPE_DOMAIN);
-        buffer.write(domainBytes.length);
-        buffer.write(domainBytes);
-        buffer.write((targetPort >> 8) & 0xFF);
-        buffer.write(targetPort & 0xFF);
+        if (phase == Phase.GREETING) {
+            if (reply.position() < Socks5Protocol.METHOD_REPLY_SIZE) return;
+            Socks5Protocol.checkMethodReply(data, 0);
+            // Keep whatever followed the method reply
+            reply.flip();
+            reply.position(Socks5Protocol.METHOD_REPLY_SIZE);
+            reply.compact();
+            phase = Phase.COMMAND;
+            if (!pipelined) writeHandshake(commandRequest(false));
+        }
+
+        int length = Socks5Protocol.replyLength(data, 0, reply.position());
+        if (length < 0 || reply.position() < length) return;
+        Socks5Protocol.checkReply(data, 0);
+        if (command == Socks5Protocol.CMD_UDP_ASSOCIATE) {
+            InetSocketAddress bound = Socks5Protocol.replyAddress(data, 0);
+            boundAddress = bound.getAddress() != null && bound.getAddress().isAnyLocalAddress()
+                    ? new InetSocketAddress(proxyAddress.getAddress(), bound.getPort())
+                    : bound;
+        }
 
-        outputStream.write(buffer.toByteArray());
-        outputStream.flush();
+        // The target may already have sent data behind the reply
+        int early = reply.position() - length;
+        ByteBuffer earlyData = null;
+        if (early > 0) {
+            earlyData = bufferPool.acquire();
+            System.arraycopy(data, length, earlyData.array(),
+                    earlyData.arrayOffset() + PacketWriter.HEADER_ROOM, early);
+        }
+        reply = null;
+        phase = Phase.RELAYING;
+        loop.untrackHandshake(this);
+        TunnelMetrics.SOCKS_HANDSHAKE_MS.record((System.nanoTime() - handshakeStartedAt) / 1000000L);
+        updateInterest();
 
-        byte[] response = new byte[10]; // Minimal response read
-        int read = inputStream.read(response);
+        ConnectCallback callback = connectCallback;
+        connectCallback = null;
+        callback.onConnectResult(true);
+        if (earlyData != null) deliver(earlyData, early);
+        flushPendingWrites();
+    }
 
-        // response[1] == 0 means SUCCESS
-        return read >= 4 && response[0] == SOCKS_VERSION && response[1] == 0;
+    void checkHandshakeTimeout(long now) {
+        if (now >= handshakeDeadline) fail("SOCKS5 handshake timed out");
     }
 
-    public void send(byte[] data) {
+    /** Called by the event loop for every ready key. */
+    void onSelected(SelectionKey selected) {
         try {
-            if (outputStream != null) {
-                outputStream.write(data);
-                outputStream.flush();
+            if (!selected.isValid()) return;
+            switch (phase) {
+                case CONNECTING:
+                    if (selected.isConnectable() && channel.finishConnect()) onConnected();
+                    break;
+                case GREETING:
+                case COMMAND:
+                    if (selected.isReadable()) readHandshake();
+                    break;
+                case RELAYING:
+                    if (selected.isWritable()) flushPendingWrites();
+                    if (selected.isValid() && selected.isReadable()) readAvailable();
+                    break;
+                default:
+                    break;
             }
         } catch (IOException e) {
-            Log.e(TAG, "Send failed", e);
-            disconnect();
+            if (phase == Phase.RELAYING) {
+                if (!closed) Log.e(TAG, "Relay error: " + e.getMessage());
+                closeUpstream();
+            } else {
+                fail(e.getMessage());
+            }
         }
     }
 
-    private void readLoop() {
-        byte[] buffer = new byte[32767];
-        try {
-            while (shouldRun && socket != null && !socket.isClosed()) {
-                int read = inputStream.read(buffer);
-                if (read > 0) {
-                    if (onDataReceived != null) {
-                        onDataReceived.onDataReceived(Arrays.copyOf(buffer, read));
-                    }
-                } else if (read == -1) {
-                    break;
+    private void readAvailable() throws IOException {
+        for (int i = 0; i < READS_PER_WAKEUP && !readPaused && !closed; i++) {
+            // Read straight into the payload area so the packet headers can be written in front
+            ByteBuffer buffer = bufferPool.acquire();
+            buffer.limit(PacketWriter.HEADER_ROOM + maxReadSize);
+            buffer.position(PacketWriter.HEADER_ROOM);
+            int read;
+            try {
+                read = channel.read(buffer);
+            } catch (IOException e) {
+                bufferPool.release(buffer);
+                throw e;
+            }
+            if (read > 0) {
+                deliver(buffer, read);
+                if (read < maxReadSize) break;
+            } else {
+                bufferPool.release(buffer);
+                if (read < 0) closeUpstream();
+                break;
+            }
+        }
+    }
+
+    private void deliver(ByteBuffer buffer, int length) {
+        buffer.clear();
+        if (onDataReceived != null) {
+            onDataReceived.onDataReceived(buffer, length);
+        } else {
+            bufferPool.release(buffer);
+        }
+    }
+
+    public void send(byte[] data) {
+        send(data, 0, data.length);
+    }
+
+    /**
+     * Writes to upstream without blocking. Whatever the socket doesn't take
+     * right away is copied into pooled buffers and flushed by the loop.
+     */
+    public void send(byte[] data, int offset, int length) {
+        boolean queued = false;
+        synchronized (writeLock) {
+            if (closed || outputClosing) return;
+            if (pendingWrites.isEmpty() && phase == Phase.RELAYING) {
+                try {
+                    int written = channel.write(ByteBuffer.wrap(data, offset, length));
+                    offset += written;
+                    length -= written;
+                } catch (IOException e) {
+                    Log.e(TAG, "Send failed", e);
+                    loop.execute(this::closeUpstream);
+                    return;
                 }
             }
-        } catch (IOException e) {
-            if (shouldRun) Log.e(TAG, "Read loop error", e);
-        } finally {
+            while (length > 0) {
+                ByteBuffer chunk = bufferPool.acquire();
+                int n = Math.min(length, chunk.capacity());
+                chunk.put(data, offset, n);
+                chunk.flip();
+                pendingWrites.add(chunk);
+                pendingBytes += n;
+                if (backlogCounter != null) backlogCounter.addAndGet(n);
+                offset += n;
+                length -= n;
+                queued = true;
+            }
+        }
+        if (queued) loop.execute(this::updateInterest);
+    }
+
+    /**
+     * Half-closes upstream once everything {@link #send} accepted has been
+     * written, e.g. when the client sent its FIN. The proxy sees EOF but can
+     * still answer; the channel stays open until upstream closes its side
+     * too, which ends in {@link #onClosed}, or until {@link #disconnect}.
+     */
+    public void shutdownOutput() {
+        synchronized (writeLock) {
+            if (closed || outputClosing) return;
+            outputClosing = true;
+        }
+        loop.execute(() -> {
+            try {
+                finishOutput();
+            } catch (IOException e) {
+                closeUpstream();
+            }
+        });
+    }
+
+    // The socket's FIN goes out behind the last queued write; loop thread only
+    private void finishOutput() throws IOException {
+        synchronized (writeLock) {
+            if (!outputClosing || outputShutDown || closed || phase != Phase.RELAYING || !pendingWrites.isEmpty()) return;
+            outputShutDown = true;
+        }
+        channel.shutdownOutput();
+    }
+
+    private void flushPendingWrites() throws IOException {
+        boolean drained;
+        synchronized (writeLock) {
+            if (pendingWrites.isEmpty()) {
+                drained = false;
+            } else {
+                ByteBuffer head;
+                while ((head = pendingWrites.peek()) != null) {
+                    int written = channel.write(head);
+                    pendingBytes -= written;
+                    if (backlogCounter != null) backlogCounter.addAndGet(-written);
+                    if (head.hasRemaining()) break;
+                    bufferPool.release(pendingWrites.poll());
+                }
+                drained = pendingWrites.isEmpty();
+            }
+        }
+        finishOutput();
+        updateInterest();
+        if (drained && onSendDrained != null) onSendDrained.run();
+    }
+
+    private void updateInterest() {
+        if (phase != Phase.RELAYING || key == null || !key.isValid()) return;
+        int ops = readPaused ? 0 : SelectionKey.OP_READ;
+        synchronized (writeLock) {
+            if (!pendingWrites.isEmpty()) ops |= SelectionKey.OP_WRITE;
+        }
+        key.interestOps(ops);
+    }
+
+    private void fail(String reason) {
+        if (warm && !closed) {
+            // A pooled connection can go stale while idle; retry once on a fresh one
+            warm = false;
+            try {
+                channel.close();
+            } catch (IOException ignored) {}
+            reply = null;
+            openChannel();
+            return;
+        }
+        Log.e(TAG, reason);
+        loop.untrackHandshake(this);
+        phase = Phase.CLOSED;
+        disconnect();
+        ConnectCallback callback = connectCallback;
+        connectCallback = null;
+        if (callback != null) {
+            TunnelMetrics.SOCKS_HANDSHAKE_FAILURES.increment();
+            callback.onConnectResult(false);
+        }
+    }
+
+    /** Gives up on the connection after one of its callbacks threw on the loop thread. */
+    void abort() {
+        warm = false;
+        if (phase == Phase.RELAYING) {
+            closeUpstream();
+        } else if (phase != Phase.CLOSED) {
+            fail("Connection failed on the relay loop");
+        } else {
             disconnect();
         }
     }
 
+    private void closeUpstream() {
+        if (phase != Phase.RELAYING) return;
+        phase = Phase.CLOSED;
+        boolean wasOpen = !closed;
+        disconnect();
+        if (wasOpen && onClosed != null) onClosed.run();
+    }
+
     public void disconnect() {
-        shouldRun = false;
+        synchronized (writeLock) {
+            closed = true;
+            ByteBuffer buffer;
+            while ((buffer = pendingWrites.poll()) != null) {
+                bufferPool.release(buffer);
+            }
+            if (backlogCounter != null) backlogCounter.addAndGet(-pendingBytes);
+            pendingBytes = 0;
+        }
         try {
-            if (socket != null) socket.close();
+            // Closing the channel also cancels its key
+            if (channel != null) channel.close();
         } catch (IOException ignored) {}
     }
 }
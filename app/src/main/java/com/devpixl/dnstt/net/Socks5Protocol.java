@@ -0,0 +1,194 @@
+package com.devpixl.dnstt.net;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * SOCKS5 (RFC 1928) message encoding and reply parsing, used by the
+ * event-loop tunnels and their connection pool. Requests can be pipelined:
+ * {@link #greetingAndConnect} puts the method greeting and the CONNECT in
+ * one write so the handshake costs a single round trip through the tunnel.
+ *
+ * UDP ASSOCIATE is covered too, including the header that wraps every
+ * datagram sent to or received from the proxy's UDP relay.
+ */
+public final class Socks5Protocol {
+    public static final byte VERSION = 5;
+    public static final byte AUTH_METHOD_NONE = 0;
+    public static final byte CMD_CONNECT = 1;
+    public static final byte CMD_UDP_ASSOCIATE = 3;
+    public static final byte ADDR_TYPE_IPV4 = 1;
+    public static final byte ADDR_TYPE_DOMAIN = 3;
+    public static final byte ADDR_TYPE_IPV6 = 4;
+    public static final byte REPLY_SUCCEEDED = 0;
+
+    public static final int METHOD_REPLY_SIZE = 2;
+    /** Largest CONNECT reply: a 255 byte domain as the bound address. */
+    public static final int MAX_REPLY_SIZE = 4 + 1 + 255 + 2;
+    /** Header of a relayed datagram with an IPv4 address: rsv, frag, type, address, port. */
+    public static final int UDP_HEADER_IPV4_SIZE = 2 + 1 + 1 + 4 + 2;
+
+    private static final byte[] GREETING = {VERSION, 1, AUTH_METHOD_NONE};
+
+    private Socks5Protocol() {}
+
+    public static byte[] greeting() {
+        return GREETING.clone();
+    }
+
+    /** CONNECT to a host name, which the proxy resolves. */
+    public static byte[] connectRequest(String host, int port) {
+        return request(false, CMD_CONNECT, ADDR_TYPE_DOMAIN, host.getBytes(StandardCharsets.US_ASCII), port);
+    }
+
+    /** CONNECT to a 4 or 16 byte address. */
+    public static byte[] connectRequest(byte[] address, int port) {
+        return request(false, CMD_CONNECT, address.length == 16 ? ADDR_TYPE_IPV6 : ADDR_TYPE_IPV4, address, port);
+    }
+
+    public static byte[] greetingAndConnect(String host, int port) {
+        return request(true, CMD_CONNECT, ADDR_TYPE_DOMAIN, host.getBytes(StandardCharsets.US_ASCII), port);
+    }
+
+    public static byte[] greetingAndConnect(byte[] address, int port) {
+        return request(true, CMD_CONNECT, address.length == 16 ? ADDR_TYPE_IPV6 : ADDR_TYPE_IPV4, address, port);
+    }
+
+    /**
+     * UDP ASSOCIATE with an all-zero address, as the datagrams' source isn't
+     * known up front. The reply's bound address is where to send them.
+     */
+    public static byte[] udpAssociateRequest() {
+        return request(false, CMD_UDP_ASSOCIATE, ADDR_TYPE_IPV4, new byte[4], 0);
+    }
+
+    public static byte[] greetingAndUdpAssociate() {
+        return request(true, CMD_UDP_ASSOCIATE, ADDR_TYPE_IPV4, new byte[4], 0);
+    }
+
+    private static byte[] request(boolean withGreeting, byte command, byte addressType, byte[] address, int port) {
+        int start = withGreeting ? GREETING.length : 0;
+        boolean domain = addressType == ADDR_TYPE_DOMAIN;
+        // ver, cmd, rsv, type, [len], address, port
+        byte[] message = new byte[start + 4 + (domain ? 1 : 0) + address.length + 2];
+        if (withGreeting) System.arraycopy(GREETING, 0, message, 0, GREETING.length);
+        int i = start;
+        message[i++] = VERSION;
+        message[i++] = command;
+        message[i++] = 0; // Reserved
+        message[i++] = addressType;
+        if (domain) message[i++] = (byte) address.length;
+        System.arraycopy(address, 0, message, i, address.length);
+        i += address.length;
+        message[i++] = (byte) (port >> 8);
+        message[i] = (byte) port;
+        return message;
+    }
+
+    /** Throws unless {@code data} holds a method reply accepting "no authentication". */
+    public static void checkMethodReply(byte[] data, int offset) throws IOException {
+        if (data[offset] != VERSION || data[offset + 1] != AUTH_METHOD_NONE) {
+            throw new IOException("SOCKS5 method rejected");
+        }
+    }
+
+    /**
+     * Total size of the command reply starting at {@code offset}, or -1 if
+     * fewer than the 5 bytes needed to know it have arrived. The bound
+     * address may be IPv4, IPv6 or a domain name.
+     */
+    public static int replyLength(byte[] data, int offset, int available) throws IOException {
+        if (available < 5) return -1;
+        switch (data[offset + 3]) {
+            case ADDR_TYPE_IPV4: return 4 + 4 + 2;
+            case ADDR_TYPE_IPV6: return 4 + 16 + 2;
+            case ADDR_TYPE_DOMAIN: return 4 + 1 + (data[offset + 4] & 0xFF) + 2;
+            default: throw new IOException("Bad SOCKS5 address type " + data[offset + 3]);
+        }
+    }
+
+    /**
+     * Bound address of the complete reply at {@code offset}. A domain name
+     * comes back unresolved.
+     */
+    public static InetSocketAddress replyAddress(byte[] data, int offset) throws IOException {
+        int type = data[offset + 3];
+        int addressOffset = offset + 4;
+        int addressLength;
+        if (type == ADDR_TYPE_DOMAIN) {
+            addressLength = data[addressOffset++] & 0xFF;
+        } else {
+            addressLength = type == ADDR_TYPE_IPV6 ? 16 : 4;
+        }
+        int portOffset = addressOffset + addressLength;
+        int port = ((data[portOffset] & 0xFF) << 8) | (data[portOffset + 1] & 0xFF);
+        if (type == ADDR_TYPE_DOMAIN) {
+            return InetSocketAddress.createUnresolved(
+                    new String(data, addressOffset, addressLength, StandardCharsets.US_ASCII), port);
+        }
+        byte[] address = new byte[addressLength];
+        System.arraycopy(data, addressOffset, address, 0, addressLength);
+        try {
+            return new InetSocketAddress(InetAddress.getByAddress(address), port);
+        } catch (UnknownHostException e) {
+            throw new IOException("Bad SOCKS5 bound address", e);
+        }
+    }
+
+    /** Writes the {@link #UDP_HEADER_IPV4_SIZE} byte datagram header for an IPv4 destination. */
+    public static void writeUdpHeader(byte[] data, int offset, int address, int port) {
+        data[offset] = 0;
+        data[offset + 1] = 0;
+        data[offset + 2] = 0; // Not a fragment
+        data[offset + 3] = ADDR_TYPE_IPV4;
+        data[offset + 4] = (byte) (address >>> 24);
+        data[offset + 5] = (byte) (address >>> 16);
+        data[offset + 6] = (byte) (address >>> 8);
+        data[offset + 7] = (byte) address;
+        data[offset + 8] = (byte) (port >> 8);
+        data[offset + 9] = (byte) port;
+    }
+
+    /** Writes the datagram header for a host name destination; returns its length. */
+    public static int writeUdpHeader(byte[] data, int offset, byte[] host, int port) {
+        data[offset] = 0;
+        data[offset + 1] = 0;
+        data[offset + 2] = 0;
+        data[offset + 3] = ADDR_TYPE_DOMAIN;
+        data[offset + 4] = (byte) host.length;
+        System.arraycopy(host, 0, data, offset + 5, host.length);
+        int portOffset = offset + 5 + host.length;
+        data[portOffset] = (byte) (port >> 8);
+        data[portOffset + 1] = (byte) port;
+        return portOffset + 2 - offset;
+    }
+
+    public static int udpHeaderLength(byte[] host) {
+        return 2 + 1 + 1 + 1 + host.length + 2;
+    }
+
+    /**
+     * Length of the header of the relayed datagram at {@code offset}, or -1
+     * if it is malformed or a fragment, which aren't supported.
+     */
+    public static int udpHeaderLength(byte[] data, int offset, int available) {
+        if (available < UDP_HEADER_IPV4_SIZE || data[offset + 2] != 0) return -1;
+        int length;
+        switch (data[offset + 3]) {
+            case ADDR_TYPE_IPV4: length = UDP_HEADER_IPV4_SIZE; break;
+            case ADDR_TYPE_IPV6: length = 4 + 16 + 2; break;
+            case ADDR_TYPE_DOMAIN: length = 4 + 1 + (data[offset + 4] & 0xFF) + 2; break;
+            default: return -1;
+        }
+        return length <= available ? length : -1;
+    }
+
+    /** Throws unless the complete reply at {@code offset} reports success. */
+    public static void checkReply(byte[] data, int offset) throws IOException {
+        if (data[offset] != VERSION) throw new IOException("Bad SOCKS5 reply version " + data[offset]);
+        if (data[offset + 1] != REPLY_SUCCEEDED) throw new IOException("SOCKS5 command failed: " + data[offset + 1]);
+    }
+}
@@ -0,0 +1,182 @@
+package com.devpixl.dnstt.net;
+
+import android.util.Log;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+/**
+ * Connections to the SOCKS proxy that are already connected and past the
+ * method greeting, so a new flow only has to send its CONNECT. One pool
+ * per {@link SocksRelay} event loop, touched by the loop thread only.
+ *
+ * The pool keeps roughly {@link #WARM_SECONDS} worth of the recent SYN
+ * rate ready, capped at {@link #MAX_IDLE}. With no new flows it shrinks to
+ * nothing, and idle entries are closed after {@link #IDLE_EXPIRY_MS}.
+ */
+final class SocksConnectionPool {
+    private static final String TAG = "SocksConnectionPool";
+    private static final int MAX_IDLE = 8;
+    private static final long IDLE_EXPIRY_MS = 20000;
+    private static final long WARMUP_TIMEOUT_MS = 10000;
+    private static final double WARM_SECONDS = 2.0;
+    // Weight of the newest sample in the smoothed SYN rate
+    private static final double RATE_SMOOTHING = 0.3;
+
+    private final Selector selector;
+    private final InetSocketAddress proxy;
+    // Oldest first, so expiry looks at the head and take() at the tail
+    private final ArrayDeque<Entry> idle = new ArrayDeque<>();
+    private final ArrayList<Entry> warming = new ArrayList<>();
+    private int takes;
+    private double synRate;
+    private long lastTick = System.currentTimeMillis();
+
+    SocksConnectionPool(Selector selector, InetSocketAddress proxy) {
+        this.selector = selector;
+        this.proxy = proxy;
+    }
+
+    boolean serves(InetSocketAddress address) {
+        return proxy.equals(address);
+    }
+
+    /**
+     * Hands out a greeted connection, or null if none is ready. The key is
+     * still registered on this loop's selector; the caller re-attaches it.
+     */
+    SelectionKey take() {
+        takes++;
+        Entry entry;
+        SelectionKey key = null;
+        while (key == null && (entry = idle.pollLast()) != null) {
+            if (entry.key.isValid()) key = entry.key;
+        }
+        refill();
+        return key;
+    }
+
+    /** Called about once a second from the event loop. */
+    void tick(long now) {
+        double seconds = Math.max(now - lastTick, 1) / 1000.0;
+        lastTick = now;
+        synRate += RATE_SMOOTHING * (takes / seconds - synRate);
+        takes = 0;
+
+        int target = target();
+        Iterator<Entry> oldest = idle.iterator();
+        while (oldest.hasNext()) {
+            Entry entry = oldest.next();
+            if (now - entry.since < IDLE_EXPIRY_MS && idle.size() <= target) break;
+            oldest.remove();
+            entry.close();
+        }
+        for (int i = warming.size() - 1; i >= 0; i--) {
+            Entry entry = warming.get(i);
+            if (now - entry.since >= WARMUP_TIMEOUT_MS) {
+                warming.remove(i);
+                entry.close();
+            }
+        }
+        refill();
+    }
+
+    void shutdown() {
+        for (Entry entry : idle) entry.close();
+        for (Entry entry : warming) entry.close();
+        idle.clear();
+        warming.clear();
+    }
+
+    private int target() {
+        return Math.min(MAX_IDLE, (int) Math.ceil(synRate * WARM_SECONDS));
+    }
+
+    private void refill() {
+        int target = target();
+        while (idle.size() + warming.size() < target) {
+            if (!open()) break;
+        }
+    }
+
+    private boolean open() {
+        SocketChannel channel = null;
+        try {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            Entry entry = new Entry();
+            boolean connected = channel.connect(proxy);
+            entry.key = channel.register(selector, connected ? 0 : SelectionKey.OP_CONNECT, entry);
+            if (connected) entry.greet();
+            warming.add(entry);
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Warm connection failed: " + e.getMessage());
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {}
+            }
+            return false;
+        }
+    }
+
+    final class Entry {
+        private SelectionKey key;
+        private ByteBuffer reply;
+        private long since = System.currentTimeMillis();
+
+        private void greet() throws IOException {
+            reply = ByteBuffer.allocate(Socks5Protocol.METHOD_REPLY_SIZE);
+            ByteBuffer greeting = ByteBuffer.wrap(Socks5Protocol.greeting());
+            ((SocketChannel) key.channel()).write(greeting);
+            if (greeting.hasRemaining()) throw new IOException("Short greeting write");
+            key.interestOps(SelectionKey.OP_READ);
+        }
+
+        void onSelected(SelectionKey selected) {
+            SocketChannel channel = (SocketChannel) selected.channel();
+            try {
+                if (!selected.isValid()) return;
+                if (selected.isConnectable()) {
+                    if (channel.finishConnect()) greet();
+                } else if (selected.isReadable()) {
+                    if (reply != null) {
+                        if (channel.read(reply) < 0) throw new IOException("Closed during greeting");
+                        if (reply.hasRemaining()) return;
+                        Socks5Protocol.checkMethodReply(reply.array(), 0);
+                        reply = null;
+                        warming.remove(this);
+                        since = System.currentTimeMillis();
+                        idle.add(this);
+                    } else {
+                        // The proxy shouldn't say anything before CONNECT; EOF means it gave up on us
+                        throw new IOException("Idle connection closed");
+                    }
+                }
+            } catch (IOException e) {
+                discard();
+            }
+        }
+
+        void discard() {
+            warming.remove(this);
+            idle.remove(this);
+            close();
+        }
+
+        private void close() {
+            try {
+                key.channel().close();
+            } catch (IOException ignored) {}
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package com.devpixl.dnstt.net;
+
+import android.util.Log;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Event loop engine for all SOCKS connections. Each loop thread owns one
+ * {@link Selector} and drives the handshake, upstream writes and downstream
+ * reads of every {@link Socks5Client} registered on it, so a flow costs a
+ * socket and a few small objects instead of a thread and a 32 KB buffer.
+ * The datagram sockets of {@link UdpRelay} associations share the loops.
+ */
+public class SocksRelay {
+    private static final String TAG = "SocksRelay";
+    // Also the granularity of the handshake timeout check
+    private static final long SELECT_TIMEOUT_MS = 1000;
+
+    private final BufferPool bufferPool;
+    private final EventLoop[] loops;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    private volatile boolean pipelinedHandshake = true;
+
+    public SocksRelay(int threads, BufferPool bufferPool) throws IOException {
+        this.bufferPool = bufferPool;
+        this.loops = new EventLoop[threads];
+        for (int i = 0; i < threads; i++) {
+            loops[i] = new EventLoop(Selector.open());
+        }
+    }
+
+    public void start() {
+        for (int i = 0; i < loops.length; i++) {
+            Thread thread = new Thread(loops[i], "SocksRelay-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    public void shutdown() {
+        for (EventLoop loop : loops) {
+            loop.running = false;
+            loop.selector.wakeup();
+        }
+    }
+
+    /**
+     * Keeps pre-greeted connections to {@code proxy} ready on every loop,
+     * sized from the recent SYN rate. Each proxy gets its own pool.
+     */
+    public void enableConnectionPool(InetSocketAddress proxy) {
+        for (EventLoop loop : loops) {
+            loop.execute(() -> {
+                if (loop.poolFor(proxy) == null) {
+                    loop.connectionPools.add(new SocksConnectionPool(loop.selector, proxy));
+                }
+            });
+        }
+    }
+
+    /**
+     * Whether clients send the greeting and CONNECT in one write instead of
+     * waiting for the method reply first, saving a round trip through the
+     * tunnel. On by default; turn it off for proxies that drop early data.
+     * Applies to clients created afterwards.
+     */
+    public void setPipelinedHandshake(boolean pipelined) {
+        this.pipelinedHandshake = pipelined;
+    }
+
+    boolean pipelinedHandshake() {
+        return pipelinedHandshake;
+    }
+
+    BufferPool bufferPool() {
+        return bufferPool;
+    }
+
+    EventLoop nextLoop() {
+        return loops[(nextLoop.getAndIncrement() & Integer.MAX_VALUE) % loops.length];
+    }
+
+    static final class EventLoop implements Runnable {
+        final Selector selector;
+        private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        // Clients still in connect/handshake, checked for timeouts; loop thread only
+        private final ArrayList<Socks5Client> handshaking = new ArrayList<>();
+        private final ArrayList<SocksConnectionPool> connectionPools = new ArrayList<>();
+        private volatile boolean running = true;
+
+        EventLoop(Selector selector) {
+            this.selector = selector;
+        }
+
+        /** Runs {@code task} on the loop thread. */
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        void trackHandshake(Socks5Client client) {
+            handshaking.add(client);
+        }
+
+        void untrackHandshake(Socks5Client client) {
+            handshaking.remove(client);
+        }
+
+        /** A pre-greeted connection to {@code proxy}, or null. */
+        SelectionKey takeWarmConnection(InetSocketAddress proxy) {
+            SocksConnectionPool pool = poolFor(proxy);
+            return pool != null ? pool.take() : null;
+        }
+
+        private SocksConnectionPool poolFor(InetSocketAddress proxy) {
+            for (int i = 0; i < connectionPools.size(); i++) {
+                if (connectionPools.get(i).serves(proxy)) return connectionPools.get(i);
+            }
+            return null;
+        }
+
+        @Override
+        public void run() {
+            long nextTimeoutCheck = System.currentTimeMillis() + SELECT_TIMEOUT_MS;
+            while (running) {
+                try {
+                    selector.select(SELECT_TIMEOUT_MS);
+                } catch (IOException e) {
+                    Log.e(TAG, "Select failed", e);
+                    break;
+                }
+
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        Log.e(TAG, "Relay task failed", e);
+                    }
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    Object attachment = key.attachment();
+                    try {
+                        if (attachment instanceof Socks5Client) {
+                            ((Socks5Client) attachment).onSelected(key);
+                        } else if (attachment instanceof UdpRelay.Association) {
+                            ((UdpRelay.Association) attachment).onSelected(key);
+                        } else {
+                            ((SocksConnectionPool.Entry) attachment).onSelected(key);
+                        }
+                    } catch (RuntimeException e) {
+                        // A cancelled key or a throwing callback fails that connection, not the loop
+                        Log.e(TAG, "Connection failed on the relay loop", e);
+                        abort(attachment);
+                    }
+                }
+
+                long now = System.currentTimeMillis();
+                if (now >= nextTimeoutCheck) {
+                    nextTimeoutCheck = now + SELECT_TIMEOUT_MS;
+                    for (int i = handshaking.size() - 1; i >= 0; i--) {
+                        Socks5Client client = handshaking.get(i);
+                        try {
+                            client.checkHandshakeTimeout(now);
+                        } catch (RuntimeException e) {
+                            Log.e(TAG, "Handshake timeout check failed", e);
+                            abort(client);
+                        }
+                    }
+                    for (int i = 0; i < connectionPools.size(); i++) {
+                        try {
+                            connectionPools.get(i).tick(now);
+                        } catch (RuntimeException e) {
+                            Log.e(TAG, "Connection pool tick failed", e);
+                        }
+                    }
+                }
+            }
+
+            for (SocksConnectionPool pool : connectionPools) {
+                pool.shutdown();
+            }
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof Socks5Client) {
+                    ((Socks5Client) key.attachment()).disconnect();
+                }
+            }
+            try {
+                selector.close();
+            } catch (IOException ignored) {}
+        }
+
+        private void abort(Object attachment) {
+            try {
+                if (attachment instanceof Socks5Client) {
+                    Socks5Client client = (Socks5Client) attachment;
+                    untrackHandshake(client);
+                    client.abort();
+                } else if (attachment instanceof UdpRelay.Association) {
+                    ((UdpRelay.Association) attachment).close();
+                } else if (attachment instanceof SocksConnectionPool.Entry) {
+                    ((SocksConnectionPool.Entry) attachment).discard();
+                }
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Closing a failed connection failed too", e);
+            }
+        }
+    }
+}
@@ -1,141 +1,596 @@
 package com.devpixl.dnstt.net;
 
 import android.util.Log;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.net.InetAddress;
-import java.util.concurrent.atomic.AtomicLong;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
 
 public class TcpConnection {
     private static final String TAG = "TcpConnection";
     private static final long INITIAL_SEQ = 1000L;
+    // Upstream reads pause once this much data is waiting for the client's window
+    private static final int MAX_QUEUED_BYTES = 64 * 1024;
+    // What we advertise, and the most out-of-order data we hold for the client
+    private static final int RECEIVE_WINDOW = 65535;
 
-    public final InetAddress sourceIp;
+    // RFC 6298 retransmission timer, with a lower floor since the client sits on the same device
+    private static final long INITIAL_RTO_MS = 1000;
+    private static final long MIN_RTO_MS = 200;
+    private static final long MAX_RTO_MS = 60000;
+    private static final int MAX_RETRANSMITS = 8;
+    private static final int DUPLICATE_ACK_THRESHOLD = 3;
+
+    // Idle timeouts by state: a half-open flow gets as long as the SOCKS handshake may take,
+    // an established one is kept like a NAT would, a closing one only briefly
+    private static final long HALF_OPEN_TIMEOUT_MS = 35000;
+    private static final long ESTABLISHED_TIMEOUT_MS = 10 * 60000;
+    private static final long CLOSING_TIMEOUT_MS = 60000;
+    // Long enough to re-ACK a retransmitted FIN if our ACK got lost; the client is on the same device
+    private static final long TIME_WAIT_MS = 5000;
+
+    // IPv4 flows use the ints, IPv6 flows the 16 byte arrays (null for IPv4)
+    public final int sourceAddress;
     public final int sourcePort;
-    public final InetAddress destIp;
+    public final int destAddress;
     public final int destPort;
-    private final FileOutputStream vpnOutput;
+    private final byte[] sourceAddress6;
+    private final byte[] destAddress6;
+    private final TunWriter tunWriter;
+    private final BufferPool bufferPool;
     private final Socks5Client socks5Client;
+    private final TimingWheel.Timeout retransmitTimer;
+    private final TimingWheel.Timeout idleTimer;
+    private final int maxSegmentSize;
+
+    // Send side, guarded by this. Data from SOCKS is queued and cut into MSS sized
+    // segments that are released as the client's advertised window allows. Sent
+    // segments stay in unacked, fully built, until the client acknowledges them.
+    private final ArrayDeque<ByteBuffer> sendQueue = new ArrayDeque<>();
+    private final ArrayDeque<ByteBuffer> unacked = new ArrayDeque<>();
+    private int queuedBytes;
+    private boolean readPaused;
+    private int mss;
+    private long sndUna = INITIAL_SEQ;
+    private long sndNxt = INITIAL_SEQ;
+    private long sndWnd;
+    private int duplicateAcks;
+    private boolean upstreamClosed;
+    private boolean finSent;
+    // The sequence number our FIN took, retransmitted like data until it is ACKed
+    private long finSeq = -1;
+
+    // Retransmission timer, guarded by this. rtoDeadline is 0 while nothing is in flight.
+    private long rtoMillis = INITIAL_RTO_MS;
+    private long smoothedRtt = -1;
+    private long rttVariance;
+    private long rtoDeadline;
+    private boolean timerScheduled;
+    private int retransmits;
+    private long timedSeq = -1;
+    private long timedAt;
 
-    private final AtomicLong ourSeq = new AtomicLong(INITIAL_SEQ);
-    private long clientSeq = 0;
+    // Receive side, only touched by the VPN loop thread. clientSeq is our rcv.nxt.
+    private final TreeMap<Long, byte[]> outOfOrder = new TreeMap<>(TcpConnection::seqDiff);
+    private int outOfOrderBytes;
+    private volatile long clientSeq = 0;
 
     // [FIX] Volatile to ensure visibility across threads (cleaner vs worker)
     public volatile long lastActivity = System.currentTimeMillis();
 
-    private enum State { SYN_RECEIVED, ESTABLISHED, FIN_WAIT, CLOSED }
+    /** Called once when the flow is over and should leave the flow table. */
+    public volatile Runnable onFinished;
+    /** Called once, when the first upstream data arrives for the client. */
+    public volatile Runnable onFirstData;
+
+    // CLOSE_WAIT: the client sent its FIN, upstream is still open. LAST_ACK: both sides sent theirs.
+    private enum State { SYN_RECEIVED, ESTABLISHED, CLOSE_WAIT, LAST_ACK, TIME_WAIT, CLOSED }
     private volatile State state = State.SYN_RECEIVED;
-    private final Object outputLock = new Object();
 
-    public TcpConnection(InetAddress sourceIp, int sourcePort,
-                         InetAddress destIp, int destPort,
-                         FileOutputStream vpnOutput, Socks5Client client) {
-        this.sourceIp = sourceIp;
+    public TcpConnection(int sourceAddress, int sourcePort,
+                         int destAddress, int destPort,
+                         TunWriter tunWriter, BufferPool bufferPool, Socks5Client client,
+                         TimingWheel timers, int maxSegmentSize) {
+        this(sourceAddress, null, sourcePort, destAddress, null, destPort,
+                tunWriter, bufferPool, client, timers, maxSegmentSize);
+    }
+
+    /** An IPv6 flow; the addresses are 16 bytes each. */
+    public TcpConnection(byte[] sourceAddress, int sourcePort,
+                         byte[] destAddress, int destPort,
+                         TunWriter tunWriter, BufferPool bufferPool, Socks5Client client,
+                         TimingWheel timers, int maxSegmentSize) {
+        this(0, sourceAddress, sourcePort, 0, destAddress, destPort,
+                tunWriter, bufferPool, client, timers, maxSegmentSize);
+    }
+
+    private TcpConnection(int sourceAddress, byte[] sourceAddress6, int sourcePort,
+                          int destAddress, byte[] destAddress6, int destPort,
+                          TunWriter tunWriter, BufferPool bufferPool, Socks5Client client,
+                          TimingWheel timers, int maxSegmentSize) {
+        this.sourceAddress = sourceAddress;
+        this.sourceAddress6 = sourceAddress6;
         this.sourcePort = sourcePort;
-        this.destIp = destIp;
+        this.destAddress = destAddress;
+        this.destAddress6 = destAddress6;
         this.destPort = destPort;
-        this.vpnOutput = vpnOutput;
+        this.tunWriter = tunWriter;
+        this.bufferPool = bufferPool;
         this.socks5Client = client;
+        this.retransmitTimer = timers.newTimeout(this::onRetransmitTimer);
+        this.idleTimer = timers.newTimeout(this::onIdleTimer);
+        this.maxSegmentSize = maxSegmentSize;
+        this.mss = maxSegmentSize;
     }
 
-    public boolean handleSyn(long clientSeqNum) {
+    /**
+     * Takes the SYN's parameters but leaves the tunnel to
+     * {@link #connectUpstream}, e.g. until the proxy is up. Retransmitted
+     * SYNs are recognised in the meantime.
+     *
+     * @param clientMss MSS option from the SYN, 0 if absent
+     * @param clientWindow window advertised in the SYN
+     */
+    public void acceptSyn(long clientSeqNum, int clientMss, int clientWindow) {
         lastActivity = System.currentTimeMillis();
-        this.clientSeq = clientSeqNum + 1;
+        idleTimer.schedule(HALF_OPEN_TIMEOUT_MS);
+        this.clientSeq = seqAdd(clientSeqNum, 1);
 
+        synchronized (this) {
+            if (clientMss > 0) mss = Math.min(clientMss, maxSegmentSize);
+            sndWnd = clientWindow;
+        }
+        // Each read from upstream becomes at most one segment
+        socks5Client.setMaxReadSize(mss);
         socks5Client.onDataReceived = this::sendDataToClient;
+        socks5Client.onClosed = this::onUpstreamClosed;
+        socks5Client.onSendDrained = this::onUpstreamDrained;
+    }
 
-        if (!socks5Client.connect()) {
-            return false;
-        }
+    /**
+     * Opens the SOCKS tunnel and answers with a SYN-ACK once it is up. Returns
+     * right away. If the tunnel fails the client gets a RST, so it gives up on
+     * this address at once (e.g. Happy Eyeballs moves on to the other family).
+     * Does nothing if the flow timed out while it waited.
+     */
+    public void connectUpstream() {
+        if (state == State.CLOSED) return;
+        socks5Client.connect(connected -> {
+            if (connected && state != State.CLOSED) {
+                sendSynAck();
+            } else {
+                if (state != State.CLOSED) {
+                    sendTcpPacket(bufferPool.acquire(), 0, INITIAL_SEQ,
+                            PacketHeaders.TCPHeader.FLAG_RST | PacketHeaders.TCPHeader.FLAG_ACK);
+                }
+                close();
+            }
+        });
+    }
 
-        sendSynAck();
+    /**
+     * Called for a SYN that matches this flow. Returns true if it was a
+     * retransmission of the SYN we are already handling; the SYN-ACK is sent
+     * again if it may have been lost.
+     */
+    public synchronized boolean handleDuplicateSyn(long clientSeqNum) {
+        if (state != State.SYN_RECEIVED || seqAdd(clientSeqNum, 1) != clientSeq) return false;
+        if (sndNxt != INITIAL_SEQ) {
+            sendTcpPacket(bufferPool.acquire(), 0, INITIAL_SEQ,
+                    PacketHeaders.TCPHeader.FLAG_SYN | PacketHeaders.TCPHeader.FLAG_ACK);
+        }
         return true;
     }
 
-    public void handleAck(long seqNum, long ackNum, byte[] payload) {
+    public void handleAck(long seqNum, long ackNum, int window, byte[] data, int offset, int length) {
         lastActivity = System.currentTimeMillis();
-        if (state == State.SYN_RECEIVED) {
-            if (ackNum == ourSeq.get() + 1) {
-                ourSeq.incrementAndGet();
-                state = State.ESTABLISHED;
+        boolean finished = false;
+        synchronized (this) {
+            if (state == State.SYN_RECEIVED) {
+                if (ackNum == sndNxt) {
+                    sndUna = ackNum;
+                    state = State.ESTABLISHED;
+                }
+            } else if (state == State.ESTABLISHED || state == State.CLOSE_WAIT || state == State.LAST_ACK) {
+                processAck(ackNum, window, length);
+                finished = state == State.LAST_ACK && !finUnacked();
             }
+            sndWnd = window;
+        }
+        if (finished) {
+            close();
+            return;
         }
 
-        if (state == State.ESTABLISHED && payload.length > 0) {
-            socks5Client.send(payload);
-            clientSeq = seqNum + payload.length;
-            sendAck();
+        if (state == State.ESTABLISHED && length > 0) {
+            receive(seqNum, data, offset, length);
         }
+        flushSendQueue();
     }
 
-    public void handleFin(long seqNum) {
+    /**
+     * Handles the FIN at {@code finSeq}. Returns false, leaving the flow open,
+     * if data in front of the FIN is still missing. A FIN while upstream is
+     * open is a half close: what upstream still sends keeps flowing to the
+     * client, and our FIN follows once upstream closes too. If upstream
+     * closed first, the flow sits in TIME_WAIT for a moment, re-ACKing
+     * retransmitted FINs, and then finishes on its own.
+     */
+    public boolean handleFin(long finSeq) {
         lastActivity = System.currentTimeMillis();
-        state = State.FIN_WAIT;
-        clientSeq = seqNum + 1;
-        sendFinAck();
-        socks5Client.disconnect();
-        state = State.CLOSED;
+        if (state == State.CLOSED) return true;
+        if (state == State.TIME_WAIT || state == State.CLOSE_WAIT || state == State.LAST_ACK) {
+            // A retransmitted FIN, so our ACK got lost
+            sendAck();
+            return true;
+        }
+        if (state == State.ESTABLISHED && finSeq != clientSeq) return false;
+        if (state != State.ESTABLISHED) {
+            // The handshake never completed; nothing to hand over
+            sendTcpPacket(bufferPool.acquire(), 0, sndNxt, PacketHeaders.TCPHeader.FLAG_RST);
+            close();
+            return true;
+        }
+
+        clientSeq = seqAdd(finSeq, 1);
+        boolean timeWait = false;
+        synchronized (this) {
+            if (!finSent) {
+                state = State.CLOSE_WAIT;
+            } else if (finUnacked()) {
+                // Both sides are closed; ours is retransmitted until it is ACKed
+                state = State.LAST_ACK;
+            } else {
+                state = State.TIME_WAIT;
+                timeWait = true;
+            }
+            sendAck();
+        }
+        if (timeWait) {
+            socks5Client.disconnect();
+            releaseQueue();
+            retransmitTimer.cancel();
+            idleTimer.schedule(TIME_WAIT_MS);
+        } else {
+            // Whatever the client sent before its FIN still goes upstream
+            socks5Client.shutdownOutput();
+            flushSendQueue();
+        }
+        return true;
     }
 
     public void close() {
         socks5Client.disconnect();
         state = State.CLOSED;
+        retransmitTimer.cancel();
+        idleTimer.cancel();
+        releaseQueue();
+        Runnable finished;
+        synchronized (this) {
+            finished = onFinished;
+            onFinished = null;
+        }
+        if (finished != null) finished.run();
+    }
+
+    public boolean isClosed() {
+        return state == State.CLOSED;
+    }
+
+    // --- Receive side ---
+
+    private void receive(long seqNum, byte[] data, int offset, int length) {
+        int delta = seqDiff(seqNum, clientSeq);
+        if (delta <= 0) {
+            // In order, possibly overlapping data we already have
+            int fresh = length + delta;
+            if (fresh > 0) {
+                deliver(data, offset - delta, fresh);
+                drainOutOfOrder();
+            }
+        } else if (delta + length <= RECEIVE_WINDOW && outOfOrderBytes + length <= RECEIVE_WINDOW
+                && !outOfOrder.containsKey(seqNum)) {
+            // The read buffer is reused, so out-of-order data has to be copied
+            outOfOrder.put(seqNum, Arrays.copyOfRange(data, offset, offset + length));
+            outOfOrderBytes += length;
+        }
+        // Duplicates and gaps get an immediate ACK so the client can fast retransmit
+        sendAck();
+    }
+
+    private void drainOutOfOrder() {
+        while (!outOfOrder.isEmpty()) {
+            Map.Entry<Long, byte[]> first = outOfOrder.firstEntry();
+            int delta = seqDiff(first.getKey(), clientSeq);
+            if (delta > 0) break;
+
+            outOfOrder.pollFirstEntry();
+            byte[] segment = first.getValue();
+            outOfOrderBytes -= segment.length;
+            int fresh = segment.length + delta;
+            if (fresh > 0) deliver(segment, -delta, fresh);
+        }
+    }
+
+    private void deliver(byte[] data, int offset, int length) {
+        socks5Client.send(data, offset, length);
+        clientSeq = seqAdd(clientSeq, length);
+    }
+
+    // --- Send side ---
+
+    private void processAck(long ackNum, int window, int payloadLength) {
+        if (seqDiff(ackNum, sndUna) > 0 && seqDiff(ackNum, sndNxt) <= 0) {
+            sndUna = ackNum;
+            duplicateAcks = 0;
+            onAckAdvanced();
+        } else if (ackNum == sndUna && payloadLength == 0 && window == sndWnd && !unacked.isEmpty()) {
+            if (++duplicateAcks == DUPLICATE_ACK_THRESHOLD) {
+                // Fast retransmit; Karn's rule, no RTT sample from this one
+                timedSeq = -1;
+                retransmitHead();
+            }
+        }
+    }
+
+    private void onAckAdvanced() {
+        long now = System.currentTimeMillis();
+        while (!unacked.isEmpty()) {
+            ByteBuffer head = unacked.peek();
+            long end = seqAdd(PacketWriter.tcpSequenceNumber(head), head.limit() - PacketWriter.HEADER_ROOM);
+            if (seqDiff(end, sndUna) > 0) break;
+            bufferPool.release(unacked.poll());
+        }
+
+        if (timedSeq >= 0 && seqDiff(sndUna, timedSeq) >= 0) {
+            updateRto(now - timedAt);
+            timedSeq = -1;
+        }
+        retransmits = 0;
+        rtoDeadline = unacked.isEmpty() && !finUnacked() ? 0 : now + rtoMillis;
+    }
+
+    private void updateRto(long sample) {
+        if (smoothedRtt < 0) {
+            smoothedRtt = sample;
+            rttVariance = sample / 2;
+        } else {
+            rttVariance = (3 * rttVariance + Math.abs(smoothedRtt - sample)) / 4;
+            smoothedRtt = (7 * smoothedRtt + sample) / 8;
+        }
+        rtoMillis = Math.max(MIN_RTO_MS, Math.min(MAX_RTO_MS, smoothedRtt + 4 * rttVariance));
     }
 
-    private void sendSynAck() {
-        sendTcpPacket(PacketHeaders.TCPHeader.FLAG_SYN | PacketHeaders.TCPHeader.FLAG_ACK, new byte[0]);
+    private void armRetransmitTimer() {
+        if (rtoDeadline == 0) rtoDeadline = System.currentTimeMillis() + rtoMillis;
+        if (timerScheduled) return;
+        scheduleTimer(rtoDeadline - System.currentTimeMillis());
     }
 
-    private void sendAck() {
-        sendTcpPacket(PacketHeaders.TCPHeader.FLAG_ACK, new byte[0]);
+    private void scheduleTimer(long delayMillis) {
+        retransmitTimer.schedule(delayMillis);
+        timerScheduled = true;
     }
 
-    private void sendFinAck() {
-        sendTcpPacket(PacketHeaders.TCPHeader.FLAG_FIN | PacketHeaders.TCPHeader.FLAG_ACK, new byte[0]);
-        ourSeq.incrementAndGet();
+    // The timer is not re-armed on every ACK; ACKs just move rtoDeadline and the
+    // pending task reschedules itself if it fires early.
+    private void onRetransmitTimer() {
+        boolean abort = false;
+        synchronized (this) {
+            timerScheduled = false;
+            if (state == State.CLOSED || rtoDeadline == 0 || (unacked.isEmpty() && !finUnacked())) {
+                rtoDeadline = 0;
+                return;
+            }
+            long now = System.currentTimeMillis();
+            if (now < rtoDeadline) {
+                scheduleTimer(rtoDeadline - now);
+                return;
+            }
+            if (++retransmits > MAX_RETRANSMITS) {
+                abort = true;
+            } else {
+                rtoMillis = Math.min(rtoMillis * 2, MAX_RTO_MS);
+                timedSeq = -1;
+                retransmitHead();
+                rtoDeadline = now + rtoMillis;
+                scheduleTimer(rtoMillis);
+            }
+        }
+        if (abort) {
+            Log.e(TAG, "Giving up on " + (destAddress6 != null ? "[" + PacketView.formatAddress(destAddress6) + "]"
+                    : PacketView.formatAddress(destAddress)) + ":" + destPort
+                    + " after " + MAX_RETRANSMITS + " retransmits");
+            sendTcpPacket(bufferPool.acquire(), 0, sndNxt, PacketHeaders.TCPHeader.FLAG_RST);
+            close();
+        }
+    }
+
+    // Fires at the state's timeout after the last activity it saw; activity since
+    // then just pushes it out, so packets never have to touch the timer
+    private void onIdleTimer() {
+        long remaining;
+        synchronized (this) {
+            if (state == State.CLOSED) return;
+            long timeout;
+            switch (state) {
+                case SYN_RECEIVED:
+                    timeout = HALF_OPEN_TIMEOUT_MS;
+                    break;
+                case ESTABLISHED:
+                    timeout = finSent ? CLOSING_TIMEOUT_MS : ESTABLISHED_TIMEOUT_MS;
+                    break;
+                case TIME_WAIT:
+                    timeout = 0;
+                    break;
+                default:
+                    timeout = CLOSING_TIMEOUT_MS;
+                    break;
+            }
+            remaining = timeout - (System.currentTimeMillis() - lastActivity);
+            if (remaining > 0) {
+                idleTimer.schedule(remaining);
+                return;
+            }
+        }
+        close();
+    }
+
+    private void retransmitHead() {
+        ByteBuffer head = unacked.peek();
+        if (head == null) {
+            // All data is ACKed, so what's missing is our FIN
+            if (finUnacked()) {
+                sendTcpPacket(bufferPool.acquire(), 0, finSeq,
+                        PacketHeaders.TCPHeader.FLAG_FIN | PacketHeaders.TCPHeader.FLAG_ACK);
+            }
+            return;
+        }
+        // Only the ACK field can be stale; the checksum is patched, not recomputed
+        PacketWriter.updateTcpAcknowledgment(head, clientSeq);
+        tunWriter.writeCopy(head);
     }
 
-    private void sendDataToClient(byte[] data) {
+    private synchronized void sendSynAck() {
+        sendTcpPacket(bufferPool.acquire(), 0, sndNxt,
+                PacketHeaders.TCPHeader.FLAG_SYN | PacketHeaders.TCPHeader.FLAG_ACK);
+        sndNxt = seqAdd(sndNxt, 1);
+    }
+
+    private synchronized void sendAck() {
+        sendTcpPacket(bufferPool.acquire(), 0, sndNxt, PacketHeaders.TCPHeader.FLAG_ACK);
+    }
+
+    private synchronized void sendFinAck() {
+        finSeq = sndNxt;
+        sendTcpPacket(bufferPool.acquire(), 0, sndNxt,
+                PacketHeaders.TCPHeader.FLAG_FIN | PacketHeaders.TCPHeader.FLAG_ACK);
+        sndNxt = seqAdd(sndNxt, 1);
+        armRetransmitTimer();
+    }
+
+    private boolean finUnacked() {
+        return finSeq >= 0 && seqDiff(sndUna, finSeq) <= 0;
+    }
+
+    // Upstream EOF: the FIN goes out behind whatever is still queued for the client
+    private void onUpstreamClosed() {
+        synchronized (this) {
+            upstreamClosed = true;
+        }
+        flushSendQueue();
+    }
+
+    // The window we advertise shrinks while upstream writes back up, so open it again
+    private synchronized void onUpstreamDrained() {
+        if (state == State.ESTABLISHED) sendAck();
+    }
+
+    // Payload was read by Socks5Client straight into the buffer at PacketWriter.HEADER_ROOM
+    private void sendDataToClient(ByteBuffer buffer, int length) {
         lastActivity = System.currentTimeMillis();
-        if (state != State.ESTABLISHED) return;
-
-        sendTcpPacket(PacketHeaders.TCPHeader.FLAG_ACK | PacketHeaders.TCPHeader.FLAG_PSH, data);
-        ourSeq.addAndGet(data.length);
-    }
-
-    private void sendTcpPacket(int flags, byte[] payload) {
-        PacketHeaders.TCPHeader tcpHeader = new PacketHeaders.TCPHeader();
-        tcpHeader.sourcePort = destPort;
-        tcpHeader.destinationPort = sourcePort;
-        tcpHeader.sequenceNumber = ourSeq.get();
-        tcpHeader.acknowledgmentNumber = clientSeq;
-        tcpHeader.dataOffset = 5;
-        tcpHeader.flags = flags;
-        tcpHeader.windowSize = 65535;
-        tcpHeader.urgentPointer = 0;
-        tcpHeader.payload = payload;
-
-        PacketHeaders.IPv4Header ipHeader = new PacketHeaders.IPv4Header();
-        ipHeader.version = 4;
-        ipHeader.ihl = 5;
-        ipHeader.totalLength = 20 + 20 + payload.length;
-        ipHeader.identification = (int) (System.currentTimeMillis() & 0xFFFF);
-        ipHeader.flags = 0;
-        ipHeader.fragmentOffset = 0;
-        ipHeader.ttl = 64;
-        ipHeader.protocol = 6;
-        ipHeader.sourceIp = destIp;
-        ipHeader.destinationIp = sourceIp;
-
-        byte[] packet = ipHeader.buildPacket(tcpHeader);
-
-        synchronized (outputLock) {
-            try {
-                vpnOutput.write(packet);
-                vpnOutput.flush();
-            } catch (IOException e) {
-                Log.e(TAG, "Failed to write to VPN", e);
+        Runnable firstData = onFirstData;
+        if (firstData != null) {
+            onFirstData = null;
+            firstData.run();
+        }
+        synchronized (this) {
+            if (state == State.LAST_ACK || state == State.TIME_WAIT || state == State.CLOSED) {
+                bufferPool.release(buffer);
+                return;
             }
+            // The limit marks the end of the payload, before and after the headers are written
+            buffer.limit(PacketWriter.HEADER_ROOM + length);
+            sendQueue.add(buffer);
+            queuedBytes += length;
+
+            if (queuedBytes > MAX_QUEUED_BYTES && !readPaused) {
+                readPaused = true;
+                socks5Client.pauseReading();
+            }
+        }
+        flushSendQueue();
+    }
+
+    private synchronized void flushSendQueue() {
+        boolean open = state == State.ESTABLISHED || state == State.CLOSE_WAIT;
+        while (open && !sendQueue.isEmpty()) {
+            ByteBuffer segment = sendQueue.peek();
+            int length = segment.limit() - PacketWriter.HEADER_ROOM;
+            long inFlight = seqDiff(sndNxt, sndUna);
+            if (inFlight + length > sndWnd) break;
+
+            sendQueue.poll();
+            queuedBytes -= length;
+            writeSegment(segment, length, sndNxt, PacketHeaders.TCPHeader.FLAG_ACK | PacketHeaders.TCPHeader.FLAG_PSH);
+            // The segment stays here for retransmits, so the writer gets a copy
+            tunWriter.writeCopy(segment);
+            unacked.add(segment);
+
+            sndNxt = seqAdd(sndNxt, length);
+            if (timedSeq < 0) {
+                timedSeq = sndNxt;
+                timedAt = System.currentTimeMillis();
+            }
+            armRetransmitTimer();
+        }
+
+        if (readPaused && queuedBytes <= MAX_QUEUED_BYTES / 2) {
+            readPaused = false;
+            socks5Client.resumeReading();
         }
+
+        if (upstreamClosed && !finSent && open && sendQueue.isEmpty()) {
+            // In sequence behind any data still in flight, which is retransmitted first
+            sendFinAck();
+            finSent = true;
+            // The client has a minute to send its FIN, or to ACK ours if it already did
+            if (state == State.CLOSE_WAIT) state = State.LAST_ACK;
+            idleTimer.schedule(CLOSING_TIMEOUT_MS);
+        }
+    }
+
+    // Bytes the SOCKS socket hasn't taken yet count against the client's window
+    private int advertisedWindow() {
+        return RECEIVE_WINDOW - Math.min(socks5Client.pendingBytes(), RECEIVE_WINDOW);
+    }
+
+    private synchronized void releaseQueue() {
+        ByteBuffer buffer;
+        while ((buffer = sendQueue.poll()) != null) {
+            bufferPool.release(buffer);
+        }
+        while ((buffer = unacked.poll()) != null) {
+            bufferPool.release(buffer);
+        }
+        queuedBytes = 0;
+        rtoDeadline = 0;
+    }
+
+    // Package-private for the benchmarks
+    void sendTcpPacket(ByteBuffer buffer, int payloadLength, long seq, int flags) {
+        writeSegment(buffer, payloadLength, seq, flags);
+        tunWriter.write(buffer);
+    }
+
+    // Headers in front of the payload at HEADER_ROOM, from the flow's remote end to the client
+    private void writeSegment(ByteBuffer buffer, int payloadLength, long seq, int flags) {
+        if (destAddress6 != null) {
+            PacketWriter.writeTcp6(buffer, payloadLength, destAddress6, destPort, sourceAddress6, sourcePort,
+                    seq, clientSeq, flags, advertisedWindow());
+        } else {
+            PacketWriter.writeTcp(buffer, payloadLength, destAddress, destPort, sourceAddress, sourcePort,
+                    seq, clientSeq, flags, advertisedWindow());
+        }
+    }
+
+    private static long seqAdd(long seq, long delta) {
+        return (seq + delta) & 0xFFFFFFFFL;
+    }
+
+    // Signed distance from b to a in 32-bit sequence space
+    private static int seqDiff(long a, long b) {
+        return (int) (a - b);
     }
 }
@@ -0,0 +1,238 @@
+package com.devpixl.dnstt.net;
+
+import android.util.Log;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hierarchical timing wheel (Varghese and Lauck) for flow timers: idle
+ * timeouts, TIME_WAIT expiry and TCP retransmits. Each {@link Timeout} is
+ * a node in an intrusive list hanging off a slot, so scheduling,
+ * rescheduling and cancelling are O(1) and allocate nothing.
+ *
+ * The first level has 256 slots of one tick each. Two coarser levels of 64
+ * slots cover 64 times the previous level's span each, about 2.9 hours at
+ * 10 ms ticks. Longer delays are parked in the last slot and placed again
+ * when it comes around. Timers in a coarser slot move down a level when
+ * the finer level wraps, as in the classic Linux timer wheel.
+ *
+ * One thread advances the wheel and runs the due tasks, so tasks must be
+ * short. It doesn't tick while nothing is due: it sleeps until the next
+ * occupied slot or cascade, and not at all while no timer is pending.
+ * Timers fire no earlier than asked and at most a tick or so late. A
+ * task that was already due when cancelled may still run once.
+ */
+public class TimingWheel {
+    private static final String TAG = "TimingWheel";
+    private static final int LEVEL0_BITS = 8;
+    private static final int LEVEL_BITS = 6;
+    private static final int LEVEL0_SLOTS = 1 << LEVEL0_BITS;
+    private static final int LEVEL_SLOTS = 1 << LEVEL_BITS;
+    private static final long LEVEL1_SPAN = 1L << (LEVEL0_BITS + LEVEL_BITS);
+    private static final long MAX_SPAN = 1L << (LEVEL0_BITS + 2 * LEVEL_BITS);
+
+    private final long tickNanos;
+    private final long startNanos = System.nanoTime();
+    // Guarded by this
+    private final Timeout[] level0 = new Timeout[LEVEL0_SLOTS];
+    private final Timeout[] level1 = new Timeout[LEVEL_SLOTS];
+    private final Timeout[] level2 = new Timeout[LEVEL_SLOTS];
+    private long currentTick;
+    private long wakeTick = Long.MAX_VALUE;
+    private int pending;
+
+    private volatile boolean running = true;
+    private Thread thread;
+
+    public TimingWheel(long tickMillis) {
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+    }
+
+    public void start() {
+        thread = new Thread(this::run, "TimingWheel");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /** Stops the thread; pending timers never fire. */
+    public void shutdown() {
+        running = false;
+        if (thread != null) LockSupport.unpark(thread);
+    }
+
+    /** A timer for {@code task}, idle until {@link Timeout#schedule} is called. */
+    public Timeout newTimeout(Runnable task) {
+        return new Timeout(task);
+    }
+
+    public synchronized int pendingCount() {
+        return pending;
+    }
+
+    public final class Timeout {
+        private final Runnable task;
+        // Guarded by the wheel; slots is null while the timer isn't pending
+        private Timeout previous;
+        private Timeout next;
+        private Timeout[] slots;
+        private int slot;
+        private long deadline;
+
+        private Timeout(Runnable task) {
+            this.task = task;
+        }
+
+        /** Runs the task {@code delayMillis} from now, replacing any earlier schedule. */
+        public void schedule(long delayMillis) {
+            long due = (elapsedNanos() + TimeUnit.MILLISECONDS.toNanos(Math.max(delayMillis, 0))) / tickNanos + 1;
+            synchronized (TimingWheel.this) {
+                if (slots != null) {
+                    unlink(this);
+                } else {
+                    // With nothing pending the wheel stopped counting ticks; catch up first
+                    if (pending == 0) currentTick = Math.max(currentTick, elapsedTicks());
+                    pending++;
+                }
+                deadline = Math.max(due, currentTick + 1);
+                insert(this);
+                if (deadline < wakeTick) {
+                    wakeTick = deadline;
+                    LockSupport.unpark(thread);
+                }
+            }
+        }
+
+        public void cancel() {
+            synchronized (TimingWheel.this) {
+                if (slots == null) return;
+                unlink(this);
+                pending--;
+            }
+        }
+
+        public boolean isPending() {
+            synchronized (TimingWheel.this) {
+                return slots != null;
+            }
+        }
+    }
+
+    private long elapsedNanos() {
+        return System.nanoTime() - startNanos;
+    }
+
+    private long elapsedTicks() {
+        return elapsedNanos() / tickNanos;
+    }
+
+    private void insert(Timeout timeout) {
+        long deadline = timeout.deadline;
+        long delta = deadline - currentTick;
+        if (delta < LEVEL0_SLOTS) {
+            link(timeout, level0, (int) (deadline & (LEVEL0_SLOTS - 1)));
+        } else if (delta < LEVEL1_SPAN) {
+            link(timeout, level1, (int) ((deadline >>> LEVEL0_BITS) & (LEVEL_SLOTS - 1)));
+        } else {
+            // Beyond the last level: wait in the furthest slot and get placed again from there
+            long placed = delta < MAX_SPAN ? deadline : currentTick + MAX_SPAN - 1;
+            link(timeout, level2, (int) ((placed >>> (LEVEL0_BITS + LEVEL_BITS)) & (LEVEL_SLOTS - 1)));
+        }
+    }
+
+    private static void link(Timeout timeout, Timeout[] slots, int slot) {
+        Timeout head = slots[slot];
+        timeout.previous = null;
+        timeout.next = head;
+        if (head != null) head.previous = timeout;
+        slots[slot] = timeout;
+        timeout.slots = slots;
+        timeout.slot = slot;
+    }
+
+    private static void unlink(Timeout timeout) {
+        if (timeout.previous != null) {
+            timeout.previous.next = timeout.next;
+        } else {
+            timeout.slots[timeout.slot] = timeout.next;
+        }
+        if (timeout.next != null) timeout.next.previous = timeout.previous;
+        timeout.previous = null;
+        timeout.next = null;
+        timeout.slots = null;
+    }
+
+    // Moves a coarse slot's timers to where they belong now
+    private void cascade(Timeout[] slots, int slot) {
+        Timeout timeout = slots[slot];
+        slots[slot] = null;
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            timeout.slots = null;
+            insert(timeout);
+            timeout = next;
+        }
+    }
+
+    private void advance(ArrayList<Timeout> due) {
+        currentTick++;
+        int index0 = (int) (currentTick & (LEVEL0_SLOTS - 1));
+        if (index0 == 0) {
+            int index1 = (int) ((currentTick >>> LEVEL0_BITS) & (LEVEL_SLOTS - 1));
+            if (index1 == 0) cascade(level2, (int) ((currentTick >>> (LEVEL0_BITS + LEVEL_BITS)) & (LEVEL_SLOTS - 1)));
+            cascade(level1, index1);
+        }
+        Timeout timeout = level0[index0];
+        level0[index0] = null;
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            timeout.previous = null;
+            timeout.next = null;
+            timeout.slots = null;
+            pending--;
+            due.add(timeout);
+            timeout = next;
+        }
+    }
+
+    // The next occupied first-level slot, or the next cascade if there is none before it
+    private long nextWakeTick() {
+        if (pending == 0) return Long.MAX_VALUE;
+        long wrap = (currentTick | (LEVEL0_SLOTS - 1)) + 1;
+        for (long tick = currentTick + 1; tick < wrap; tick++) {
+            if (level0[(int) (tick & (LEVEL0_SLOTS - 1))] != null) return tick;
+        }
+        return wrap;
+    }
+
+    private void run() {
+        ArrayList<Timeout> due = new ArrayList<>();
+        while (running) {
+            long wake;
+            synchronized (this) {
+                long target = elapsedTicks();
+                if (pending == 0) {
+                    currentTick = Math.max(currentTick, target);
+                } else {
+                    while (currentTick < target) advance(due);
+                }
+                wake = wakeTick = nextWakeTick();
+            }
+            for (int i = 0; i < due.size(); i++) {
+                try {
+                    due.get(i).task.run();
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Timer task failed", e);
+                }
+            }
+            due.clear();
+            // A timer scheduled before wake unparks us early
+            if (wake == Long.MAX_VALUE) {
+                LockSupport.park(this);
+            } else {
+                long sleepNanos = wake * tickNanos - elapsedNanos();
+                if (sleepNanos > 0) LockSupport.parkNanos(this, sleepNanos);
+            }
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package com.devpixl.dnstt.net;
+
+import android.util.Log;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The one thread that writes to the TUN fd. Producers (packet lanes, relay
+ * loops, timers) put finished packets on a lock-free queue and go on, so
+ * none of them ever waits on the fd or on each other. The writer drains up
+ * to {@link #BATCH} packets per wakeup, each in its own write() as the TUN
+ * wants one packet per call, and releases them to the pool.
+ *
+ * The queue is bounded: a packet that finds it full is dropped and
+ * counted, like a full NIC ring. TCP retransmits; UDP may lose anyway.
+ */
+public class TunWriter {
+    private static final String TAG = "TunWriter";
+    private static final int BATCH = 64;
+
+    private final FileChannel channel;
+    private final BufferPool bufferPool;
+    private final int capacity;
+    private final ConcurrentLinkedQueue<ByteBuffer> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger depth = new AtomicInteger();
+    private final AtomicInteger maxDepth = new AtomicInteger();
+    private final AtomicBoolean parked = new AtomicBoolean();
+    private volatile boolean running = true;
+    private Thread thread;
+
+    private final AtomicLong packetsWritten = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private final AtomicLong packetsDropped = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+
+    public TunWriter(FileChannel channel, BufferPool bufferPool, int capacity) {
+        this.channel = channel;
+        this.bufferPool = bufferPool;
+        this.capacity = capacity;
+    }
+
+    public void start() {
+        thread = new Thread(this::run, "TunWriter");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void shutdown() {
+        running = false;
+        if (thread != null) LockSupport.unpark(thread);
+    }
+
+    /**
+     * Queues the packet framed by the buffer's position and limit. The
+     * writer owns the buffer from here on and releases it to the pool.
+     * Returns false if the queue was full and the packet dropped.
+     */
+    public boolean write(ByteBuffer packet) {
+        int queued = depth.incrementAndGet();
+        if (!running || queued > capacity) {
+            depth.decrementAndGet();
+            packetsDropped.incrementAndGet();
+            bufferPool.release(packet);
+            return false;
+        }
+        queue.offer(packet);
+        int max;
+        while (queued > (max = maxDepth.get()) && !maxDepth.compareAndSet(max, queued)) {
+            // Another producer raised it; read it again
+        }
+        if (parked.get() && parked.compareAndSet(true, false)) LockSupport.unpark(thread);
+        return true;
+    }
+
+    /**
+     * Queues a pooled copy of the framed packet, for buffers the caller
+     * keeps, such as TCP segments awaiting their ACK. The caller may
+     * patch, retransmit or release its buffer at any time afterwards.
+     */
+    public boolean writeCopy(ByteBuffer packet) {
+        int length = packet.remaining();
+        ByteBuffer copy = length <= bufferPool.bufferSize() ? bufferPool.acquire() : ByteBuffer.allocate(length);
+        copy.put(packet.array(), packet.arrayOffset() + packet.position(), length);
+        copy.flip();
+        return write(copy);
+    }
+
+    private void run() {
+        try {
+            while (running) {
+                ByteBuffer packet = queue.poll();
+                if (packet == null) {
+                    parked.set(true);
+                    // A producer may have queued between the poll and the flag
+                    if (queue.isEmpty() && running) LockSupport.park(this);
+                    parked.set(false);
+                    continue;
+                }
+                batches.incrementAndGet();
+                int written = 0;
+                do {
+                    depth.decrementAndGet();
+                    writePacket(packet);
+                } while (++written < BATCH && (packet = queue.poll()) != null);
+            }
+        } finally {
+            ByteBuffer packet;
+            while ((packet = queue.poll()) != null) {
+                depth.decrementAndGet();
+                bufferPool.release(packet);
+            }
+        }
+    }
+
+    private void writePacket(ByteBuffer packet) {
+        try {
+            int length = packet.remaining();
+            channel.write(packet);
+            packetsWritten.incrementAndGet();
+            bytesWritten.addAndGet(length);
+        } catch (IOException e) {
+            packetsDropped.incrementAndGet();
+            if (running) Log.e(TAG, "TUN write failed: " + e.getMessage());
+        }
+        bufferPool.release(packet);
+    }
+
+    /** Packets waiting for the writer right now. */
+    public int queueDepth() {
+        return depth.get();
+    }
+
+    /** The most packets ever seen waiting at once. */
+    public int maxQueueDepth() {
+        return maxDepth.get();
+    }
+
+    public long packetsWritten() {
+        return packetsWritten.get();
+    }
+
+    public long bytesWritten() {
+        return bytesWritten.get();
+    }
+
+    /** Packets dropped on a full queue or a failed write. */
+    public long packetsDropped() {
+        return packetsDropped.get();
+    }
+
+    /** Batches written; packets over batches is the average batch size. */
+    public long batches() {
+        return batches.get();
+    }
+}
@@ -0,0 +1,196 @@
+package com.devpixl.dnstt.net;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Spreads new flows and DNS queries over several dnstt client instances,
+ * each a SOCKS proxy on its own local port. One dnstt session is capped by
+ * what its resolver will carry, so N sessions, possibly through different
+ * resolvers, carry up to N times as much.
+ *
+ * Work goes to the live instance with the fewest outstanding bytes: write
+ * backlog its SOCKS connections haven't taken yet, plus DNS queries still
+ * awaiting an answer. A saturated instance stops reading and its backlog
+ * grows, so new work moves elsewhere. Ties, the usual case on an idle
+ * tunnel, go to the instance with the fewest open flows. An instance whose
+ * process died is {@link #markDead marked dead} and gets nothing new.
+ *
+ * An instance that is {@link #markStarting starting} holds back the
+ * upstream connects handed to {@link Instance#whenReady} until it is
+ * {@link #markReady ready}, so flows opened during startup wait for the
+ * tunnel instead of failing against a port nobody listens on yet.
+ */
+public class TunnelBalancer {
+    private final Instance[] instances;
+
+    /** {@code count} instances listening on {@code host} at {@code firstPort} and the ports after it. */
+    public TunnelBalancer(String host, int firstPort, int count) {
+        this.instances = new Instance[count];
+        for (int i = 0; i < count; i++) {
+            instances[i] = new Instance(i, host, firstPort + i);
+        }
+    }
+
+    public static final class Instance {
+        public final int index;
+        public final String host;
+        public final int port;
+        /** Bytes handed to this instance and not yet taken or answered. */
+        public final AtomicLong outstandingBytes = new AtomicLong();
+        private final AtomicInteger flows = new AtomicInteger();
+        private volatile boolean alive = true;
+        private volatile boolean ready = true;
+        // Work held back until the instance is ready; guarded by this
+        private final ArrayList<Runnable> waiting = new ArrayList<>();
+        // DNS through the tunnel as a health signal: answers, their total RTT, and queries lost
+        private final AtomicLong answers = new AtomicLong();
+        private final AtomicLong answerMillis = new AtomicLong();
+        private final AtomicLong losses = new AtomicLong();
+
+        Instance(int index, String host, int port) {
+            this.index = index;
+            this.host = host;
+            this.port = port;
+        }
+
+        public boolean isAlive() {
+            return alive;
+        }
+
+        public boolean isReady() {
+            return ready;
+        }
+
+        /**
+         * Runs {@code task} now if the instance is ready, or dead so the
+         * task fails at once; otherwise on the thread that marks it ready.
+         */
+        public void whenReady(Runnable task) {
+            if (!ready && alive) {
+                synchronized (this) {
+                    if (!ready && alive) {
+                        waiting.add(task);
+                        return;
+                    }
+                }
+            }
+            task.run();
+        }
+
+        // Runs what was waiting; returns how many
+        private int release() {
+            Runnable[] tasks;
+            synchronized (this) {
+                tasks = waiting.toArray(new Runnable[0]);
+                waiting.clear();
+            }
+            for (Runnable task : tasks) {
+                task.run();
+            }
+            return tasks.length;
+        }
+
+        public int flows() {
+            return flows.get();
+        }
+
+        public void flowOpened() {
+            flows.incrementAndGet();
+        }
+
+        public void flowClosed() {
+            flows.decrementAndGet();
+        }
+
+        public void recordAnswer(long rttMillis) {
+            answers.incrementAndGet();
+            answerMillis.addAndGet(rttMillis);
+        }
+
+        /** A query through this instance that was never answered. */
+        public void recordLoss() {
+            losses.incrementAndGet();
+        }
+
+        public long answers() {
+            return answers.get();
+        }
+
+        /** The summed round-trip times of {@link #answers}. */
+        public long answerMillis() {
+            return answerMillis.get();
+        }
+
+        public long losses() {
+            return losses.get();
+        }
+    }
+
+    /**
+     * The live instance with the least outstanding bytes, then the fewest
+     * flows. With none alive the first one is returned, so work still
+     * fails through the usual paths.
+     */
+    public Instance pick() {
+        Instance best = null;
+        long bestBytes = 0;
+        int bestFlows = 0;
+        for (Instance instance : instances) {
+            if (!instance.alive) continue;
+            long bytes = instance.outstandingBytes.get();
+            int flows = instance.flows.get();
+            if (best == null || bytes < bestBytes || (bytes == bestBytes && flows < bestFlows)) {
+                best = instance;
+                bestBytes = bytes;
+                bestFlows = flows;
+            }
+        }
+        return best != null ? best : instances[0];
+    }
+
+    public Instance instance(int index) {
+        return instances[index];
+    }
+
+    public int size() {
+        return instances.length;
+    }
+
+    public int aliveCount() {
+        int alive = 0;
+        for (Instance instance : instances) {
+            if (instance.alive) alive++;
+        }
+        return alive;
+    }
+
+    /** Takes the instance out of rotation; flows already on it, or waiting for it, fail on their own. */
+    public void markDead(int index) {
+        Instance instance = instances[index];
+        synchronized (instance) {
+            instance.alive = false;
+        }
+        instance.release();
+    }
+
+    /** Back in rotation, with upstream connects held until {@link #markReady}. */
+    public void markStarting(int index) {
+        Instance instance = instances[index];
+        synchronized (instance) {
+            instance.ready = false;
+            instance.alive = true;
+        }
+    }
+
+    /** Lets the held connects go. Returns how many there were, or -1 if it was ready already. */
+    public int markReady(int index) {
+        Instance instance = instances[index];
+        synchronized (instance) {
+            if (instance.ready) return -1;
+            instance.ready = true;
+        }
+        return instance.release();
+    }
+}
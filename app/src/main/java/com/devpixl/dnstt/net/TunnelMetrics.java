@@ -0,0 +1,30 @@
+package com.devpixl.dnstt.net;
+
+/**
+ * The tunnel's metrics, recorded straight from the hot paths. The service
+ * adds gauges for what its components count themselves and resets the
+ * registry on every start; the UI reads {@link #REGISTRY} snapshots.
+ */
+public final class TunnelMetrics {
+    public static final Metrics REGISTRY = new Metrics();
+
+    // Milliseconds, from loopback-fast to the SOCKS handshake timeout
+    private static final long[] LATENCY_BOUNDS_MS =
+            {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 30000};
+
+    /** Packets and bytes read from the TUN, i.e. sent by apps. */
+    public static final Metrics.Counter TUN_PACKETS_IN = REGISTRY.counter("tun.packets_in");
+    public static final Metrics.Counter TUN_BYTES_IN = REGISTRY.counter("tun.bytes_in");
+
+    public static final Metrics.Counter TCP_FLOWS_OPENED = REGISTRY.counter("tcp.flows_opened");
+
+    public static final Metrics.Counter SOCKS_HANDSHAKE_FAILURES = REGISTRY.counter("socks.handshake_failures");
+    public static final Metrics.Histogram SOCKS_HANDSHAKE_MS =
+            REGISTRY.histogram("socks.handshake_ms", LATENCY_BOUNDS_MS);
+
+    /** Queries through the tunnel that were never answered. */
+    public static final Metrics.Counter DNS_QUERIES_LOST = REGISTRY.counter("dns.queries_lost");
+    public static final Metrics.Histogram DNS_QUERY_MS = REGISTRY.histogram("dns.query_ms", LATENCY_BOUNDS_MS);
+
+    private TunnelMetrics() {}
+}
@@ -0,0 +1,124 @@
+package com.devpixl.dnstt.net;
+
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * What to do with UDP the tunnel doesn't carry: everything but DNS, unless
+ * {@link UdpRelay} is on. By default it is dropped without a word, so an
+ * app trying QUIC waits for its own timeout before falling back to TCP.
+ * Datagrams to a port in the reject set are answered with ICMP port
+ * unreachable instead. The sending socket then fails at once with
+ * ECONNREFUSED, and the app can move on to TCP right away. Rejection comes
+ * before the relay, so QUIC is kept off the tunnel even with the relay on.
+ *
+ * No error is sent for multicast or broadcast datagrams, as RFC 1122
+ * forbids; those are just dropped. Non-first fragments never get here.
+ * IPv6 datagrams get the ICMPv6 equivalent.
+ */
+public class UdpRejectPolicy {
+    /** QUIC, the one that matters for page loads. */
+    public static final String DEFAULT_PORTS = "443";
+
+    private final BitSet ports;
+
+    private final AtomicLong rejectedPackets = new AtomicLong();
+    private final AtomicLong rejectedBytes = new AtomicLong();
+    private final AtomicLong droppedPackets = new AtomicLong();
+    private final ConcurrentHashMap<Integer, AtomicLong> rejectedByPort = new ConcurrentHashMap<>();
+
+    private UdpRejectPolicy(BitSet ports) {
+        this.ports = ports;
+    }
+
+    /**
+     * Parses a comma separated port list such as {@code "443, 8443, 50000-50100"}.
+     * {@code "*"} rejects every port, an empty or null list none.
+     */
+    public static UdpRejectPolicy parse(String spec) {
+        BitSet ports = new BitSet(65536);
+        if (spec != null) {
+            for (String part : spec.split(",")) {
+                part = part.trim();
+                if (part.isEmpty()) continue;
+                if (part.equals("*")) {
+                    ports.set(1, 65536);
+                    continue;
+                }
+                int dash = part.indexOf('-');
+                int from = parsePort(dash < 0 ? part : part.substring(0, dash));
+                int to = dash < 0 ? from : parsePort(part.substring(dash + 1));
+                if (to < from) throw new IllegalArgumentException("Bad UDP port range " + part);
+                ports.set(from, to + 1);
+            }
+        }
+        // DNS always goes through the resolver path
+        ports.clear(53);
+        return new UdpRejectPolicy(ports);
+    }
+
+    private static int parsePort(String text) {
+        try {
+            int port = Integer.parseInt(text.trim());
+            if (port >= 1 && port <= 65535) return port;
+        } catch (NumberFormatException ignored) {}
+        throw new IllegalArgumentException("Bad UDP port " + text.trim());
+    }
+
+    /** True if the datagram in {@code view} should get a port unreachable error. */
+    public boolean rejects(PacketView view) {
+        return ports.get(view.destinationPort()) && !view.isMulticastOrBroadcast();
+    }
+
+    /** Counts a datagram that was neither rejected nor carried. */
+    public void countDropped() {
+        droppedPackets.incrementAndGet();
+    }
+
+    /** Writes the port unreachable error for {@code view} into {@code buffer}, framed for the TUN write. */
+    public void writeRejection(PacketView view, ByteBuffer buffer) {
+        if (view.isIpv6()) {
+            PacketWriter.writeIcmp6Unreachable(buffer, PacketHeaders.ICMPHeader.CODE_V6_PORT_UNREACHABLE,
+                    view.array(), view.ipOffset(), view.ipTotalLength());
+        } else {
+            PacketWriter.writeIcmpUnreachable(buffer, PacketHeaders.ICMPHeader.CODE_PORT_UNREACHABLE,
+                    view.array(), view.ipOffset(), view.ipTotalLength(), view.destinationAddress());
+        }
+        rejectedPackets.incrementAndGet();
+        rejectedBytes.addAndGet(view.payloadLength());
+        AtomicLong count = rejectedByPort.get(view.destinationPort());
+        if (count == null) {
+            AtomicLong fresh = new AtomicLong();
+            count = rejectedByPort.putIfAbsent(view.destinationPort(), fresh);
+            if (count == null) count = fresh;
+        }
+        count.incrementAndGet();
+    }
+
+    public long rejectedPackets() {
+        return rejectedPackets.get();
+    }
+
+    /** UDP payload bytes of the rejected datagrams. */
+    public long rejectedBytes() {
+        return rejectedBytes.get();
+    }
+
+    /** Non-DNS datagrams dropped without an error. */
+    public long droppedPackets() {
+        return droppedPackets.get();
+    }
+
+    /** Rejected datagrams per destination port, in port order. */
+    public Map<Integer, Long> rejectedByPort() {
+        TreeMap<Integer, Long> counts = new TreeMap<>();
+        for (Map.Entry<Integer, AtomicLong> entry : rejectedByPort.entrySet()) {
+            counts.put(entry.getKey(), entry.getValue().get());
+        }
+        return counts;
+    }
+}
@@ -0,0 +1,420 @@
+package com.devpixl.dnstt.net;
+
+import android.util.Log;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Carries non-DNS UDP flows over SOCKS5 UDP ASSOCIATE (RFC 1928).
+ *
+ * A session is one flow, keyed by its 4-tuple and dropped after
+ * {@link #IDLE_TIMEOUT_MS} without traffic either way. Sessions share
+ * associations: every datagram carries its destination in the SOCKS
+ * header, so one association and its single UDP socket serve many flows.
+ * A reply is matched back to its session by the peer it came from, so two
+ * sessions on one association may not talk to the same peer. The second
+ * such session goes to another association, and up to
+ * {@link #MAX_ASSOCIATIONS} are opened on demand.
+ *
+ * Outgoing datagrams are written from the packet lanes straight out of
+ * the packet buffer. The SOCKS header goes over the IP and UDP headers in front
+ * of the payload, so nothing is copied. Replies are read on a relay loop
+ * thread, up to {@link #READS_PER_WAKEUP} per wakeup. Each is read into a
+ * pooled buffer placed so that its payload lands at
+ * {@link PacketWriter#HEADER_ROOM}.
+ */
+public class UdpRelay {
+    private static final String TAG = "UdpRelay";
+    private static final long IDLE_TIMEOUT_MS = 60000;
+    private static final int MAX_ASSOCIATIONS = 8;
+    // Datagrams held per association while its handshake runs
+    private static final int MAX_PENDING = 64;
+    private static final int READS_PER_WAKEUP = 32;
+
+    public interface DatagramCallback {
+        /**
+         * Called on a relay loop thread with a pooled buffer holding a
+         * {@code length} byte payload at {@link PacketWriter#HEADER_ROOM},
+         * sent by the remote end of a session to its client. The callee owns
+         * the buffer.
+         */
+        void onDatagram(ByteBuffer buffer, int length, int remoteAddress, int remotePort,
+                        int clientAddress, int clientPort);
+    }
+
+    private final SocksRelay relay;
+    private final BufferPool bufferPool;
+    private final String proxyHost;
+    private final int proxyPort;
+    private final DatagramCallback callback;
+
+    private final FlowTable<Session> sessions = new FlowTable<>(FlowTable.IPV4_KEY_WORDS);
+    // Sessions by (peer address, association id, peer port); the address is 0 for host name peers
+    private final FlowTable<Session> peers = new FlowTable<>(FlowTable.IPV4_KEY_WORDS);
+    // Guarded by this
+    private final ArrayList<Association> associations = new ArrayList<>();
+    private int nextAssociationId;
+    private volatile boolean closed;
+
+    // Per sending thread, so packet lanes can relay without locking
+    private final ThreadLocal<int[]> sessionKey = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[FlowTable.IPV4_KEY_WORDS];
+        }
+    };
+
+    private final AtomicLong datagramsSent = new AtomicLong();
+    private final AtomicLong datagramsReceived = new AtomicLong();
+    private final AtomicLong datagramsDropped = new AtomicLong();
+
+    public UdpRelay(SocksRelay relay, String proxyHost, int proxyPort, DatagramCallback callback) {
+        this.relay = relay;
+        this.bufferPool = relay.bufferPool();
+        this.proxyHost = proxyHost;
+        this.proxyPort = proxyPort;
+        this.callback = callback;
+    }
+
+    /**
+     * Relays the datagram in {@code view}. {@code host} names the
+     * destination instead of its address when set, e.g. for a fake-IP
+     * address. Returns false if the datagram can't be relayed at all
+     * (IPv6, multicast, broadcast, or no association to put it on),
+     * leaving it to the caller. The bytes in front of the payload are
+     * overwritten. Safe from several threads as long as each session's
+     * datagrams come from one of them.
+     */
+    public boolean send(PacketView view, String host) {
+        if (closed || view.isIpv6() || view.isMulticastOrBroadcast()) return false;
+        int remoteAddress = view.destinationAddress();
+        int clientAddress = view.sourceAddress();
+        int clientPort = view.sourcePort();
+        int remotePort = view.destinationPort();
+        int[] key = FlowTable.ipv4Key(sessionKey.get(), clientAddress, clientPort, remoteAddress, remotePort);
+        Session session = sessions.get(key);
+        if (session == null) {
+            session = open(clientAddress, clientPort, remoteAddress, remotePort, host);
+            if (session == null) return false;
+        }
+        session.lastActivity = System.currentTimeMillis();
+
+        byte[] data = view.array();
+        int length = view.payloadLength();
+        if (session.host == null) {
+            int start = view.payloadOffset() - Socks5Protocol.UDP_HEADER_IPV4_SIZE;
+            Socks5Protocol.writeUdpHeader(data, start, remoteAddress, remotePort);
+            session.association.send(ByteBuffer.wrap(data, start, Socks5Protocol.UDP_HEADER_IPV4_SIZE + length));
+        } else {
+            // Host name headers can be longer than the IP and UDP headers they would replace
+            int headerLength = Socks5Protocol.udpHeaderLength(session.host);
+            if (headerLength + length > bufferPool.bufferSize()) {
+                datagramsDropped.incrementAndGet();
+                return true;
+            }
+            ByteBuffer copy = bufferPool.acquire();
+            Socks5Protocol.writeUdpHeader(copy.array(), copy.arrayOffset(), session.host, remotePort);
+            System.arraycopy(data, view.payloadOffset(), copy.array(), copy.arrayOffset() + headerLength, length);
+            copy.limit(headerLength + length);
+            session.association.send(copy);
+            bufferPool.release(copy);
+        }
+        return true;
+    }
+
+    private synchronized Session open(int clientAddress, int clientPort, int remoteAddress, int remotePort,
+                                      String host) {
+        int peerAddress = host == null ? remoteAddress : 0;
+        int[] peerKey = new int[FlowTable.IPV4_KEY_WORDS];
+        Association association = null;
+        for (Association candidate : associations) {
+            if (candidate.dead) continue;
+            FlowTable.ipv4Key(peerKey, peerAddress, remotePort, candidate.id, 0);
+            if (peers.get(peerKey) == null) {
+                association = candidate;
+                break;
+            }
+        }
+        if (association == null) {
+            if (associations.size() >= MAX_ASSOCIATIONS) {
+                Log.w(TAG, "All " + MAX_ASSOCIATIONS + " associations already talk to this peer");
+                return null;
+            }
+            association = new Association(nextAssociationId++);
+            associations.add(association);
+            association.start();
+            FlowTable.ipv4Key(peerKey, peerAddress, remotePort, association.id, 0);
+        }
+
+        Session session = new Session(clientAddress, clientPort, remoteAddress, remotePort,
+                host == null ? null : host.getBytes(StandardCharsets.US_ASCII), association, peerKey);
+        sessions.put(FlowTable.ipv4Key(new int[FlowTable.IPV4_KEY_WORDS],
+                clientAddress, clientPort, remoteAddress, remotePort), session);
+        peers.put(peerKey, session);
+        association.sessionCount.incrementAndGet();
+        return session;
+    }
+
+    /** Drops sessions idle for {@link #IDLE_TIMEOUT_MS}, and associations left without sessions. */
+    public void expireIdle(long now) {
+        sessions.removeIf(session -> {
+            if (now - session.lastActivity <= IDLE_TIMEOUT_MS) return false;
+            forget(session);
+            return true;
+        });
+        ArrayList<Association> unused = new ArrayList<>();
+        synchronized (this) {
+            // Taken out of the list under the lock, so open() can't pick them meanwhile
+            for (int i = associations.size() - 1; i >= 0; i--) {
+                if (associations.get(i).sessionCount.get() == 0) unused.add(associations.remove(i));
+            }
+        }
+        for (Association association : unused) {
+            association.close();
+        }
+    }
+
+    // Runs under the sessions table lock, so it must not take the relay's
+    private void forget(Session session) {
+        peers.remove(session.peerKey);
+        session.association.sessionCount.decrementAndGet();
+    }
+
+    public int sessionCount() {
+        return sessions.size();
+    }
+
+    public long datagramsSent() {
+        return datagramsSent.get();
+    }
+
+    public long datagramsReceived() {
+        return datagramsReceived.get();
+    }
+
+    /** Datagrams lost inside the relay: full socket buffers or queues, oversized, or replies with no session. */
+    public long datagramsDropped() {
+        return datagramsDropped.get();
+    }
+
+    public void shutdown() {
+        closed = true;
+        ArrayList<Association> all;
+        synchronized (this) {
+            all = new ArrayList<>(associations);
+        }
+        for (Association association : all) {
+            association.close();
+        }
+    }
+
+    private static final class Session {
+        final int clientAddress;
+        final int clientPort;
+        // As the client sees it, so a fake-IP address stays fake
+        final int remoteAddress;
+        final int remotePort;
+        final byte[] host;
+        final Association association;
+        final int[] peerKey;
+        volatile long lastActivity = System.currentTimeMillis();
+
+        Session(int clientAddress, int clientPort, int remoteAddress, int remotePort, byte[] host,
+                Association association, int[] peerKey) {
+            this.clientAddress = clientAddress;
+            this.clientPort = clientPort;
+            this.remoteAddress = remoteAddress;
+            this.remotePort = remotePort;
+            this.host = host;
+            this.association = association;
+            this.peerKey = peerKey;
+        }
+    }
+
+    /**
+     * One UDP ASSOCIATE: the SOCKS control connection plus the datagram
+     * socket connected to the proxy's relay endpoint. The socket is driven
+     * by a {@link SocksRelay} event loop.
+     */
+    final class Association {
+        final int id;
+        private final Socks5Client control;
+        private final SocksRelay.EventLoop loop;
+        // Guarded by this association's monitor until ready
+        private final ArrayDeque<ByteBuffer> pending = new ArrayDeque<>();
+        private volatile boolean ready;
+        private volatile boolean dead;
+        private volatile DatagramChannel channel;
+        final AtomicInteger sessionCount = new AtomicInteger();
+        // Loop thread only
+        private final int[] peerKey = new int[FlowTable.IPV4_KEY_WORDS];
+
+        Association(int id) {
+            this.id = id;
+            this.control = Socks5Client.udpAssociate(relay, proxyHost, proxyPort);
+            this.loop = relay.nextLoop();
+        }
+
+        void start() {
+            control.onClosed = this::close;
+            control.connect(connected -> {
+                if (!connected) {
+                    close();
+                    return;
+                }
+                loop.execute(this::openChannel);
+            });
+        }
+
+        private void openChannel() {
+            InetSocketAddress endpoint = control.boundAddress();
+            try {
+                if (dead || endpoint == null || endpoint.isUnresolved()) {
+                    throw new IOException("No usable UDP relay endpoint: " + endpoint);
+                }
+                DatagramChannel opened = DatagramChannel.open();
+                channel = opened;
+                opened.configureBlocking(false);
+                opened.connect(endpoint);
+                opened.register(loop.selector, SelectionKey.OP_READ, this);
+                if (dead) throw new IOException("closed while associating");
+            } catch (IOException e) {
+                Log.e(TAG, "UDP ASSOCIATE failed: " + e.getMessage());
+                close();
+                // close() may have run before the channel was opened
+                closeChannel();
+                return;
+            }
+            synchronized (this) {
+                ByteBuffer queued;
+                while ((queued = pending.poll()) != null) {
+                    write(queued);
+                    bufferPool.release(queued);
+                }
+                ready = true;
+            }
+        }
+
+        /** Sends the datagram (SOCKS header included) between the buffer's position and limit. */
+        void send(ByteBuffer datagram) {
+            if (!ready) {
+                synchronized (this) {
+                    if (!ready) {
+                        if (dead || pending.size() >= MAX_PENDING) {
+                            datagramsDropped.incrementAndGet();
+                            return;
+                        }
+                        ByteBuffer copy = bufferPool.acquire();
+                        copy.put(datagram);
+                        copy.flip();
+                        pending.add(copy);
+                        return;
+                    }
+                }
+            }
+            write(datagram);
+        }
+
+        private void write(ByteBuffer datagram) {
+            try {
+                // A full socket buffer takes nothing; UDP may drop, and so do we
+                if (channel.write(datagram) > 0) {
+                    datagramsSent.incrementAndGet();
+                } else {
+                    datagramsDropped.incrementAndGet();
+                }
+            } catch (IOException e) {
+                datagramsDropped.incrementAndGet();
+            }
+        }
+
+        /** Called by the event loop when replies are waiting. */
+        void onSelected(SelectionKey key) {
+            if (!key.isValid() || !key.isReadable()) return;
+            // IPv4 replies land with their payload right at HEADER_ROOM
+            int start = PacketWriter.HEADER_ROOM - Socks5Protocol.UDP_HEADER_IPV4_SIZE;
+            for (int i = 0; i < READS_PER_WAKEUP; i++) {
+                ByteBuffer buffer = bufferPool.acquire();
+                buffer.position(start);
+                int read;
+                try {
+                    read = channel.read(buffer);
+                } catch (IOException e) {
+                    bufferPool.release(buffer);
+                    Log.e(TAG, "UDP relay read failed: " + e.getMessage());
+                    close();
+                    return;
+                }
+                if (read <= 0) {
+                    bufferPool.release(buffer);
+                    return;
+                }
+                // A datagram that filled the buffer may have been cut short
+                if (!buffer.hasRemaining() || !deliver(buffer, start, read)) {
+                    datagramsDropped.incrementAndGet();
+                    bufferPool.release(buffer);
+                }
+            }
+        }
+
+        private boolean deliver(ByteBuffer buffer, int start, int read) {
+            byte[] data = buffer.array();
+            int offset = buffer.arrayOffset() + start;
+            int headerLength = Socks5Protocol.udpHeaderLength(data, offset, read);
+            // Only IPv4 peers can be mapped back to a flow
+            if (headerLength != Socks5Protocol.UDP_HEADER_IPV4_SIZE) return false;
+            int peerAddress = ((data[offset + 4] & 0xFF) << 24) | ((data[offset + 5] & 0xFF) << 16)
+                    | ((data[offset + 6] & 0xFF) << 8) | (data[offset + 7] & 0xFF);
+            int peerPort = ((data[offset + 8] & 0xFF) << 8) | (data[offset + 9] & 0xFF);
+
+            Session session = peers.get(FlowTable.ipv4Key(peerKey, peerAddress, peerPort, id, 0));
+            if (session == null) {
+                // Sent by host name: the proxy resolved it, so only the port can be matched
+                session = peers.get(FlowTable.ipv4Key(peerKey, 0, peerPort, id, 0));
+            }
+            if (session == null || session.association != this) return false;
+            session.lastActivity = System.currentTimeMillis();
+            datagramsReceived.incrementAndGet();
+            callback.onDatagram(buffer, read - headerLength, session.remoteAddress, session.remotePort,
+                    session.clientAddress, session.clientPort);
+            return true;
+        }
+
+        /** Ends the association; its sessions go with it and start over on the next datagram. */
+        void close() {
+            synchronized (this) {
+                if (dead) return;
+                dead = true;
+                ByteBuffer queued;
+                while ((queued = pending.poll()) != null) {
+                    bufferPool.release(queued);
+                }
+            }
+            synchronized (UdpRelay.this) {
+                associations.remove(this);
+            }
+            sessions.removeIf(session -> {
+                if (session.association != this) return false;
+                forget(session);
+                return true;
+            });
+            control.disconnect();
+            closeChannel();
+        }
+
+        private void closeChannel() {
+            try {
+                // Closing the channel also cancels its key
+                if (channel != null) channel.close();
+            } catch (IOException ignored) {}
+        }
+    }
+}
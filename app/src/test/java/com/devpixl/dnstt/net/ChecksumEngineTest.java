@@ -0,0 +1,211 @@
+package com.devpixl.dnstt.net;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+
+public class ChecksumEngineTest {
+    private static final int[] LENGTHS = {0, 1, 2, 3, 7, 8, 9, 1500};
+    private static final int[] OFFSETS = {1, 3, 8, 13};
+
+    private final Random random = new Random(1071);
+
+    // The word-by-word loop PacketHeaders used before ChecksumEngine, run on a copy starting at 0
+    private static int reference(byte[] data, int offset, int length) {
+        byte[] copy = Arrays.copyOfRange(data, offset, offset + length);
+        int sum = 0;
+        int i = 0;
+        while (i < length - 1) {
+            sum += ((copy[i] & 0xFF) << 8) | (copy[i + 1] & 0xFF);
+            i += 2;
+        }
+        if (length % 2 != 0) {
+            sum += (copy[length - 1] & 0xFF) << 8;
+        }
+        while ((sum >> 16) > 0) {
+            sum = (sum & 0xFFFF) + (sum >> 16);
+        }
+        return ~sum & 0xFFFF;
+    }
+
+    private byte[] randomBytes(int length) {
+        byte[] data = new byte[length];
+        random.nextBytes(data);
+        return data;
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        int length = 0;
+        for (byte[] part : parts) length += part.length;
+        byte[] all = new byte[length];
+        int position = 0;
+        for (byte[] part : parts) {
+            System.arraycopy(part, 0, all, position, part.length);
+            position += part.length;
+        }
+        return all;
+    }
+
+    private static int readInt(byte[] data, int offset) {
+        return ((data[offset] & 0xFF) << 24) | ((data[offset + 1] & 0xFF) << 16)
+                | ((data[offset + 2] & 0xFF) << 8) | (data[offset + 3] & 0xFF);
+    }
+
+    private static int readShort(byte[] data, int offset) {
+        return ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+    }
+
+    private static void writeInt(byte[] data, int offset, int value) {
+        data[offset] = (byte) (value >>> 24);
+        data[offset + 1] = (byte) (value >>> 16);
+        data[offset + 2] = (byte) (value >>> 8);
+        data[offset + 3] = (byte) value;
+    }
+
+    private static void writeShort(byte[] data, int offset, int value) {
+        data[offset] = (byte) (value >>> 8);
+        data[offset + 1] = (byte) value;
+    }
+
+    @Test
+    public void checksumMatchesWordByWordLoop() {
+        for (int length : LENGTHS) {
+            for (int offset : OFFSETS) {
+                for (int round = 0; round < 20; round++) {
+                    byte[] data = randomBytes(offset + length + 5);
+                    assertEquals("length " + length + " at " + offset,
+                            reference(data, offset, length), ChecksumEngine.checksum(data, offset, length));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void checksumOfAllOnesAndAllZeros() {
+        for (int length : LENGTHS) {
+            byte[] ones = new byte[length + 2];
+            Arrays.fill(ones, (byte) 0xFF);
+            assertEquals(reference(ones, 2, length), ChecksumEngine.checksum(ones, 2, length));
+            byte[] zeros = new byte[length + 2];
+            assertEquals(0xFFFF, ChecksumEngine.checksum(zeros, 2, length));
+        }
+    }
+
+    @Test
+    public void byteBufferSumMatchesArraySum() {
+        for (int length : LENGTHS) {
+            byte[] data = randomBytes(length + 4);
+            ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+            direct.put(data);
+            assertEquals(ChecksumEngine.fold(ChecksumEngine.sum(data, 3, length, 0)),
+                    ChecksumEngine.fold(ChecksumEngine.sum(direct, 3, length, 0)));
+        }
+    }
+
+    @Test
+    public void ipv4PseudoHeaderMatchesConcatenation() {
+        for (int length : LENGTHS) {
+            int source = random.nextInt();
+            int destination = random.nextInt();
+            byte[] segment = randomBytes(length);
+            byte[] pseudo = new byte[12];
+            writeInt(pseudo, 0, source);
+            writeInt(pseudo, 4, destination);
+            pseudo[9] = 6;
+            writeShort(pseudo, 10, length);
+            byte[] all = concat(pseudo, segment);
+
+            long sum = ChecksumEngine.pseudoHeaderSum(source, destination, 6, length);
+            sum = ChecksumEngine.sum(segment, 0, length, sum);
+            assertEquals("length " + length, reference(all, 0, all.length), ChecksumEngine.finish(sum));
+        }
+    }
+
+    @Test
+    public void ipv6PseudoHeaderMatchesConcatenation() {
+        for (int length : LENGTHS) {
+            // Addresses inside bigger arrays, as they sit in a packet
+            byte[] packet = randomBytes(40);
+            byte[] segment = randomBytes(length);
+            byte[] pseudo = new byte[40];
+            System.arraycopy(packet, 8, pseudo, 0, 32);
+            writeInt(pseudo, 32, length);
+            pseudo[39] = 17;
+            byte[] all = concat(pseudo, segment);
+
+            long sum = ChecksumEngine.pseudoHeaderSum6(packet, 8, packet, 24, 17, length);
+            sum = ChecksumEngine.sum(segment, 0, length, sum);
+            assertEquals("length " + length, reference(all, 0, all.length), ChecksumEngine.finish(sum));
+        }
+    }
+
+    @Test
+    public void incrementalUpdatesMatchRecompute() {
+        for (int round = 0; round < 1000; round++) {
+            byte[] header = randomBytes(20);
+            int checksum = ChecksumEngine.checksum(header, 0, 20);
+
+            // Ports, sequence and acknowledgment numbers, then the offset/flags word
+            for (int field : new int[] {0, 2}) {
+                int oldWord = readShort(header, field);
+                int newWord = random.nextInt(0x10000);
+                writeShort(header, field, newWord);
+                checksum = ChecksumEngine.update16(checksum, oldWord, newWord);
+                assertEquals(ChecksumEngine.checksum(header, 0, 20), checksum);
+            }
+            for (int field : new int[] {4, 8}) {
+                int oldValue = readInt(header, field);
+                int newValue = random.nextInt();
+                writeInt(header, field, newValue);
+                checksum = ChecksumEngine.update32(checksum, oldValue, newValue);
+                assertEquals(ChecksumEngine.checksum(header, 0, 20), checksum);
+            }
+            int oldFlags = readShort(header, 12);
+            int newFlags = (oldFlags & 0xFFC0) | (PacketHeaders.TCPHeader.FLAG_FIN | PacketHeaders.TCPHeader.FLAG_ACK);
+            writeShort(header, 12, newFlags);
+            checksum = ChecksumEngine.update16(checksum, oldFlags, newFlags);
+            assertEquals(ChecksumEngine.checksum(header, 0, 20), checksum);
+        }
+    }
+
+    @Test
+    public void incrementalUpdateToZeroChecksum() {
+        // The rest of the range sums to 0xFFFF - x, so writing x makes the checksum 0x0000
+        for (int round = 0; round < 1000; round++) {
+            byte[] header = randomBytes(8);
+            writeShort(header, 6, 0);
+            int rest = ChecksumEngine.fold(ChecksumEngine.sum(header, 0, 8, 0));
+            int oldWord = random.nextInt(0x10000);
+            writeShort(header, 6, oldWord);
+            int checksum = ChecksumEngine.checksum(header, 0, 8);
+
+            int newWord = 0xFFFF - rest;
+            writeShort(header, 6, newWord);
+            int updated = ChecksumEngine.update16(checksum, oldWord, newWord);
+            assertEquals(ChecksumEngine.checksum(header, 0, 8), updated);
+            assertEquals(0x0000, updated);
+        }
+    }
+
+    @Test
+    public void incrementalUpdateFromAllZeroRange() {
+        // An all-zero range is the only one whose checksum is 0xFFFF
+        byte[] header = new byte[20];
+        int checksum = ChecksumEngine.checksum(header, 0, 20);
+        assertEquals(0xFFFF, checksum);
+
+        writeInt(header, 4, 0x12345678);
+        checksum = ChecksumEngine.update32(checksum, 0, 0x12345678);
+        assertEquals(ChecksumEngine.checksum(header, 0, 20), checksum);
+
+        // Back to all zeros: RFC 1624 eqn. 3 yields -0 (0x0000) where a recompute yields +0 (0xFFFF);
+        // both are zero in one's complement, and real TCP/UDP sums never are since the pseudo-header isn't
+        writeInt(header, 4, 0);
+        int updated = ChecksumEngine.update32(checksum, 0x12345678, 0);
+        assertEquals(0xFFFF, ChecksumEngine.checksum(header, 0, 20));
+        assertEquals(0x0000, updated);
+    }
+}
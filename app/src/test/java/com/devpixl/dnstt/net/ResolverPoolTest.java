@@ -0,0 +1,157 @@
+package com.devpixl.dnstt.net;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Test;
+
+public class ResolverPoolTest {
+    private static final int PROBE_TIMEOUT_MS = 300;
+
+    private final DnsProber prober = new DnsProber("t.example.com", PROBE_TIMEOUT_MS);
+    private FakeResolver fast;
+    private FakeResolver slow;
+    private FakeResolver lossy;
+
+    /** A resolver on loopback that answers every query after a delay, or drops some of them. */
+    private static final class FakeResolver implements Runnable {
+        final DatagramSocket socket;
+        final long delayMillis;
+        // Drops every dropEvery-th query; 1 drops them all, 0 none
+        volatile int dropEvery;
+        volatile int rcode;
+        final AtomicInteger queries = new AtomicInteger();
+
+        FakeResolver(long delayMillis, int dropEvery) throws IOException {
+            this.socket = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+            this.delayMillis = delayMillis;
+            this.dropEvery = dropEvery;
+            Thread thread = new Thread(this, "FakeResolver");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        String address() {
+            return "127.0.0.1:" + socket.getLocalPort();
+        }
+
+        @Override
+        public void run() {
+            byte[] buffer = new byte[512];
+            try {
+                while (true) {
+                    DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                    socket.receive(packet);
+                    int n = queries.incrementAndGet();
+                    if (dropEvery > 0 && n % dropEvery == 0) continue;
+                    Thread.sleep(delayMillis);
+                    // Echo the question back as a response with no answers
+                    DnsMessage.putShort(buffer, 2, 0x8180 | rcode);
+                    socket.send(new DatagramPacket(buffer, packet.getLength(), packet.getSocketAddress()));
+                }
+            } catch (IOException | InterruptedException e) {
+                // Closed
+            }
+        }
+
+        void close() {
+            socket.close();
+        }
+    }
+
+    @After
+    public void closeResolvers() {
+        for (FakeResolver resolver : new FakeResolver[] {fast, slow, lossy}) {
+            if (resolver != null) resolver.close();
+        }
+    }
+
+    private ResolverPool probedPool(int rounds, FakeResolver... resolvers) {
+        String[] addresses = new String[resolvers.length];
+        for (int i = 0; i < resolvers.length; i++) {
+            addresses[i] = resolvers[i].address();
+        }
+        ResolverPool pool = new ResolverPool(addresses, prober);
+        for (int round = 0; round < rounds; round++) {
+            pool.probeAll();
+        }
+        return pool;
+    }
+
+    @Test
+    public void proberTimesAnswersAndCountsDropsAsLost() throws IOException {
+        fast = new FakeResolver(0, 0);
+        slow = new FakeResolver(100, 0);
+        lossy = new FakeResolver(0, 1);
+
+        long rtt = prober.probe(fast.address());
+        assertTrue("fast answered in " + rtt, rtt >= 0 && rtt < 100);
+        rtt = prober.probe(slow.address());
+        assertTrue("slow answered in " + rtt, rtt >= 100 && rtt < PROBE_TIMEOUT_MS);
+        assertEquals(-1, prober.probe(lossy.address()));
+
+        // Refusing is how resolvers rate-limit
+        fast.rcode = 5;
+        assertEquals(-1, prober.probe(fast.address()));
+    }
+
+    @Test
+    public void fastResolverBeatsSlowAndLossyOnes() throws IOException {
+        fast = new FakeResolver(5, 0);
+        slow = new FakeResolver(150, 0);
+        lossy = new FakeResolver(0, 2);
+        ResolverPool pool = probedPool(4, slow, lossy, fast);
+
+        assertEquals(pool.describe(), fast.address(), pool.best(Collections.<String>emptySet()));
+        assertEquals(pool.describe(), fast.address(), pool.replacementFor(slow.address(), Collections.<String>emptySet()));
+        assertEquals(pool.describe(), fast.address(), pool.replacementFor(lossy.address(), Collections.<String>emptySet()));
+        assertNull(pool.describe(), pool.replacementFor(fast.address(), Collections.<String>emptySet()));
+    }
+
+    @Test
+    public void degradedCurrentResolverIsReplaced() throws IOException {
+        fast = new FakeResolver(0, 0);
+        slow = new FakeResolver(20, 0);
+        ResolverPool pool = probedPool(2, fast, slow);
+        assertNull(pool.describe(), pool.replacementFor(fast.address(), Collections.<String>emptySet()));
+
+        // The current resolver starts dropping everything: move even to a slower one
+        fast.dropEvery = 1;
+        for (int round = 0; round < 2; round++) {
+            pool.probeAll();
+        }
+        assertEquals(pool.describe(), slow.address(), pool.replacementFor(fast.address(), Collections.<String>emptySet()));
+    }
+
+    @Test
+    public void tunnelLossesDegradeTheCurrentResolver() throws IOException {
+        fast = new FakeResolver(0, 0);
+        slow = new FakeResolver(20, 0);
+        ResolverPool pool = probedPool(2, fast, slow);
+
+        // Queries the tunnel gave up on count like dropped probes
+        pool.recordTunnel(fast.address(), 2, 10, 8);
+        assertEquals(pool.describe(), slow.address(), pool.replacementFor(fast.address(), Collections.<String>emptySet()));
+    }
+
+    @Test
+    public void similarResolversDontTradePlaces() throws IOException {
+        fast = new FakeResolver(0, 0);
+        slow = new FakeResolver(0, 0);
+        ResolverPool pool = new ResolverPool(new String[] {fast.address(), slow.address()}, prober);
+        pool.recordTunnel(fast.address(), 10, 1000, 0);
+        pool.recordTunnel(slow.address(), 10, 700, 0);
+
+        assertEquals(slow.address(), pool.best(Collections.<String>emptySet()));
+        // 70 ms against 100 ms isn't worth a move
+        assertNull(pool.describe(), pool.replacementFor(fast.address(), Collections.<String>emptySet()));
+    }
+}
@@ -0,0 +1,57 @@
+package com.devpixl.dnstt.net;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Per-packet flow lookup as done by DnsttVpnService.processTcpPacket(),
+ * against the String keyed ConcurrentHashMap it replaced.
+ */
+@State(Scope.Thread)
+public class FlowTableBenchmark {
+
+    private static final int CLIENT = 0x0A000002;
+
+    @Param({"16", "256", "1024"})
+    public int flows;
+
+    private final FlowTable<Object> table = new FlowTable<>(FlowTable.IPV4_KEY_WORDS);
+    private final ConcurrentHashMap<String, Object> legacy = new ConcurrentHashMap<>();
+    private final int[] key = new int[FlowTable.IPV4_KEY_WORDS];
+    private int[] remotes;
+    private int next;
+
+    @Setup
+    public void setup() {
+        remotes = new int[flows];
+        for (int i = 0; i < flows; i++) {
+            remotes[i] = 0x5DB80000 + i * 7;
+            Object value = new Object();
+            table.put(FlowTable.ipv4Key(new int[FlowTable.IPV4_KEY_WORDS], CLIENT, 40000 + i, remotes[i], 443), value);
+            legacy.put(legacyKey(40000 + i, remotes[i]), value);
+        }
+    }
+
+    @Benchmark
+    public Object flowTableGet() {
+        int i = next++ % flows;
+        return table.get(FlowTable.ipv4Key(key, CLIENT, 40000 + i, remotes[i], 443));
+    }
+
+    @Benchmark
+    public Object legacyStringKeyGet() {
+        int i = next++ % flows;
+        String id = legacyKey(40000 + i, remotes[i]);
+        return legacy.containsKey(id) ? legacy.get(id) : null;
+    }
+
+    private static String legacyKey(int sourcePort, int remote) {
+        return PacketView.formatAddress(CLIENT) + ":" + sourcePort
+                + "->" + PacketView.formatAddress(remote) + ":" + 443;
+    }
+}
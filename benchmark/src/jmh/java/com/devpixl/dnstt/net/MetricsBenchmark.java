@@ -0,0 +1,41 @@
+package com.devpixl.dnstt.net;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Four threads recording into one metric, as the packet lanes and relay
+ * loops do: a striped {@link Metrics.Counter} against a single AtomicLong,
+ * and a histogram record with a latency-like value.
+ */
+@State(Scope.Benchmark)
+public class MetricsBenchmark {
+    private final Metrics metrics = new Metrics();
+    private final Metrics.Counter counter = metrics.counter("packets");
+    private final Metrics.Histogram histogram =
+            metrics.histogram("latency", 1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 30000);
+    private final AtomicLong atomic = new AtomicLong();
+
+    @Benchmark
+    @Threads(4)
+    public void stripedCounter() {
+        counter.increment();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void atomicCounter() {
+        atomic.incrementAndGet();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void histogramRecord() {
+        histogram.record(ThreadLocalRandom.current().nextInt(400));
+    }
+}
@@ -0,0 +1,103 @@
+package com.devpixl.dnstt.net;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Parse and build paths of the packet engine for one TCP segment of
+ * {@code payloadSize} bytes. The heap {@link PacketHeaders} variants are
+ * kept next to the in-place ones so the gap stays visible.
+ */
+@State(Scope.Thread)
+public class PacketHeadersBenchmark {
+
+    @Param({"0", "512", "1240"})
+    public int payloadSize;
+
+    private byte[] tcpPacket;
+    private byte[] tcpSegment;
+    private byte[] payload;
+    private PacketHeaders.TCPHeader tcpHeader;
+    private InetAddress clientIp;
+    private InetAddress remoteIp;
+    private ByteBuffer outBuffer;
+    private final PacketView view = new PacketView();
+
+    @Setup
+    public void setup() throws Exception {
+        payload = new byte[payloadSize];
+        new Random(42).nextBytes(payload);
+        clientIp = InetAddress.getByName("10.0.0.2");
+        remoteIp = InetAddress.getByName("93.184.216.34");
+
+        ByteBuffer buffer = ByteBuffer.allocate(PacketWriter.HEADER_ROOM + payloadSize);
+        System.arraycopy(payload, 0, buffer.array(), PacketWriter.HEADER_ROOM, payloadSize);
+        PacketWriter.writeTcp(buffer, payloadSize, 0x0A000002, 40000, 0x5DB8D822, 443,
+                1000L, 2000L, PacketHeaders.TCPHeader.FLAG_ACK | PacketHeaders.TCPHeader.FLAG_PSH, 65535);
+        tcpPacket = new byte[buffer.remaining()];
+        buffer.get(tcpPacket);
+        tcpSegment = PacketHeaders.IPv4Header.parse(tcpPacket).payload;
+        tcpHeader = PacketHeaders.TCPHeader.parse(tcpSegment);
+
+        outBuffer = ByteBuffer.allocate(PacketWriter.HEADER_ROOM + payloadSize);
+    }
+
+    @Benchmark
+    public PacketHeaders.IPv4Header ipv4Parse() {
+        return PacketHeaders.IPv4Header.parse(tcpPacket);
+    }
+
+    @Benchmark
+    public PacketHeaders.TCPHeader tcpParse() {
+        return PacketHeaders.TCPHeader.parse(tcpSegment);
+    }
+
+    @Benchmark
+    public byte[] tcpToByteArray() {
+        return tcpHeader.toByteArray(clientIp, remoteIp);
+    }
+
+    @Benchmark
+    public byte[] udpBuildPacket() {
+        PacketHeaders.UDPHeader udp = new PacketHeaders.UDPHeader();
+        udp.sourcePort = 53;
+        udp.destinationPort = 40000;
+        udp.payload = payload;
+
+        PacketHeaders.IPv4Header ip = new PacketHeaders.IPv4Header();
+        ip.version = 4;
+        ip.ihl = 5;
+        ip.ttl = 64;
+        ip.protocol = 17;
+        ip.sourceIp = remoteIp;
+        ip.destinationIp = clientIp;
+        return PacketHeaders.UDPHeader.buildUdpPacket(udp, ip);
+    }
+
+    @Benchmark
+    public int calculateChecksum() {
+        // PacketHeaders.calculateChecksum() delegates here
+        return ChecksumEngine.checksum(tcpPacket, 0, tcpPacket.length);
+    }
+
+    @Benchmark
+    public long viewParse() {
+        view.wrap(tcpPacket, 0, tcpPacket.length);
+        return view.sequenceNumber() + view.payloadLength() + view.sourcePort();
+    }
+
+    @Benchmark
+    public ByteBuffer writerWriteTcp() {
+        outBuffer.clear();
+        PacketWriter.writeTcp(outBuffer, payloadSize, 0x5DB8D822, 443, 0x0A000002, 40000,
+                2000L, 1000L, PacketHeaders.TCPHeader.FLAG_ACK, 65535);
+        return outBuffer;
+    }
+}
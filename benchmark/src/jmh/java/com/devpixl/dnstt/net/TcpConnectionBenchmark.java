@@ -0,0 +1,61 @@
+package com.devpixl.dnstt.net;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Downstream segment path: build the headers in a pooled buffer and hand
+ * the packet to a {@link TunWriter} on a /dev/null sink standing in for
+ * the TUN fd.
+ */
+@State(Scope.Thread)
+public class TcpConnectionBenchmark {
+
+    @Param({"0", "1240"})
+    public int payloadSize;
+
+    private FileOutputStream sink;
+    private TunWriter writer;
+    private BufferPool pool;
+    private TimingWheel timers;
+    private SocksRelay relay;
+    private TcpConnection connection;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        sink = new FileOutputStream("/dev/null");
+        pool = new BufferPool(PacketWriter.HEADER_ROOM + 1240, 1024);
+        writer = new TunWriter(sink.getChannel(), pool, 1024);
+        writer.start();
+        // Never started or connected; the client only has to exist
+        relay = new SocksRelay(1, pool);
+        Socks5Client client = new Socks5Client(relay, "127.0.0.1", 1, "93.184.216.34", 443);
+        timers = new TimingWheel(10);
+        timers.start();
+        connection = new TcpConnection(0x0A000002, 40000, 0x5DB8D822, 443, writer, pool, client, timers, 1240);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        timers.shutdown();
+        relay.shutdown();
+        writer.shutdown();
+        sink.close();
+    }
+
+    @Benchmark
+    public void sendTcpPacket() {
+        ByteBuffer buffer = pool.acquire();
+        connection.sendTcpPacket(buffer, payloadSize, 1000L,
+                PacketHeaders.TCPHeader.FLAG_ACK | PacketHeaders.TCPHeader.FLAG_PSH);
+    }
+}
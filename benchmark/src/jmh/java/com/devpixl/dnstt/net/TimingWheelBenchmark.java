@@ -0,0 +1,67 @@
+package com.devpixl.dnstt.net;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Re-arming a flow timer with {@code flows} other timers pending, as every
+ * flow does on a state change: the wheel reschedules a node in place, the
+ * executor cancels a future and schedules a new one.
+ */
+@State(Scope.Thread)
+public class TimingWheelBenchmark {
+    private static final Runnable NOTHING = () -> {};
+
+    @Param({"100", "10000"})
+    public int flows;
+
+    private TimingWheel wheel;
+    private TimingWheel.Timeout[] timeouts;
+    private ScheduledThreadPoolExecutor executor;
+    private ScheduledFuture<?>[] futures;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        wheel = new TimingWheel(10);
+        wheel.start();
+        executor = new ScheduledThreadPoolExecutor(1);
+        executor.setRemoveOnCancelPolicy(true);
+        timeouts = new TimingWheel.Timeout[flows];
+        futures = new ScheduledFuture<?>[flows];
+        for (int i = 0; i < flows; i++) {
+            long delay = 60000 + i;
+            timeouts[i] = wheel.newTimeout(NOTHING);
+            timeouts[i].schedule(delay);
+            futures[i] = executor.schedule(NOTHING, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        wheel.shutdown();
+        executor.shutdownNow();
+    }
+
+    @Benchmark
+    public void wheelReschedule() {
+        int i = next++ % flows;
+        timeouts[i].schedule(60000 + i);
+    }
+
+    @Benchmark
+    public void executorReschedule() {
+        int i = next++ % flows;
+        futures[i].cancel(false);
+        futures[i] = executor.schedule(NOTHING, 60000 + i, TimeUnit.MILLISECONDS);
+    }
+}
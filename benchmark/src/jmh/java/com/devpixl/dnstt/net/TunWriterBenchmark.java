@@ -0,0 +1,66 @@
+package com.devpixl.dnstt.net;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Several producers writing packets to a /dev/null sink: through the
+ * {@link TunWriter} queue, or each taking a lock on the stream and writing
+ * itself as the service used to. The queued numbers are what a producer
+ * pays; drops show when the writer falls behind.
+ */
+@State(Scope.Benchmark)
+public class TunWriterBenchmark {
+
+    @Param({"64", "1280"})
+    public int packetSize;
+
+    private FileOutputStream sink;
+    private BufferPool pool;
+    private TunWriter writer;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        sink = new FileOutputStream("/dev/null");
+        pool = new BufferPool(PacketWriter.HEADER_ROOM + 1240, 4096);
+        writer = new TunWriter(sink.getChannel(), pool, 1024);
+        writer.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        System.out.println("\nwritten " + writer.packetsWritten() + " in " + writer.batches() + " batches, max depth "
+                + writer.maxQueueDepth() + ", dropped " + writer.packetsDropped());
+        writer.shutdown();
+        sink.close();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean queued() {
+        ByteBuffer packet = pool.acquire();
+        packet.limit(packetSize);
+        return writer.write(packet);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void locked() throws IOException {
+        ByteBuffer packet = pool.acquire();
+        synchronized (sink) {
+            sink.write(packet.array(), packet.arrayOffset(), packetSize);
+            sink.flush();
+        }
+        pool.release(packet);
+    }
+}
@@ -0,0 +1,220 @@
+package com.devpixl.dnstt.net;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * UDP ASSOCIATE relay against a local SOCKS5 stand-in whose relay echoes
+ * every datagram back, as if the peer had. {@code roundTrip} minus
+ * {@code directRoundTrip} (the same echo without SOCKS) is the latency the
+ * relay adds; {@code burst} is datagrams per second through one association.
+ */
+@State(Scope.Thread)
+public class UdpRelayBenchmark {
+    private static final int BURST = 32;
+    private static final long REPLY_TIMEOUT_NS = TimeUnit.SECONDS.toNanos(1);
+
+    @Param({"64", "1200"})
+    public int payloadSize;
+
+    private StandIn standIn;
+    private BufferPool pool;
+    private SocksRelay relay;
+    private UdpRelay udpRelay;
+    private final AtomicInteger replies = new AtomicInteger();
+
+    private byte[] packet;
+    private byte[] scratch;
+    private final PacketView view = new PacketView();
+
+    private DatagramChannel direct;
+    private ByteBuffer directBuffer;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        standIn = new StandIn();
+        pool = new BufferPool(1280, 256);
+        relay = new SocksRelay(1, pool);
+        relay.start();
+        udpRelay = new UdpRelay(relay, "127.0.0.1", standIn.port(), (buffer, length, remoteAddress, remotePort,
+                                                                     clientAddress, clientPort) -> {
+            pool.release(buffer);
+            replies.incrementAndGet();
+        });
+
+        ByteBuffer built = ByteBuffer.allocate(PacketWriter.HEADER_ROOM + payloadSize);
+        PacketWriter.writeUdp(built, payloadSize, 0x0A000002, 40000, 0x5DB8D822, 7777);
+        packet = new byte[built.remaining()];
+        built.get(packet);
+        scratch = packet.clone();
+
+        direct = DatagramChannel.open();
+        direct.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), standIn.udpPort()));
+        directBuffer = ByteBuffer.allocate(Socks5Protocol.UDP_HEADER_IPV4_SIZE + payloadSize);
+
+        // The first datagram waits for the association
+        send();
+        awaitReplies(1);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        udpRelay.shutdown();
+        relay.shutdown();
+        direct.close();
+        standIn.close();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public int roundTrip() {
+        int target = replies.get() + 1;
+        send();
+        return awaitReplies(target);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public int directRoundTrip() throws IOException {
+        directBuffer.clear();
+        direct.write(directBuffer);
+        directBuffer.clear();
+        return direct.read(directBuffer);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BURST)
+    public int burst() {
+        int target = replies.get() + BURST;
+        for (int i = 0; i < BURST; i++) {
+            send();
+        }
+        return awaitReplies(target);
+    }
+
+    private void send() {
+        // The relay writes its header over the packet's own, so start from a clean copy
+        System.arraycopy(packet, 0, scratch, 0, packet.length);
+        view.wrap(scratch, 0, packet.length);
+        udpRelay.send(view, null);
+    }
+
+    // Gives up after a while so a lost datagram stalls one iteration instead of the run
+    private int awaitReplies(int target) {
+        long deadline = System.nanoTime() + REPLY_TIMEOUT_NS;
+        int seen;
+        while ((seen = replies.get()) < target && System.nanoTime() < deadline) {
+            Thread.onSpinWait();
+        }
+        if (seen < target) replies.set(target);
+        return seen;
+    }
+
+    /**
+     * Minimal SOCKS5 server: accepts "no authentication", answers any UDP
+     * ASSOCIATE with its one relay socket and echoes every datagram sent
+     * there. The echo keeps the SOCKS header, so the reply appears to come
+     * from the destination.
+     */
+    static final class StandIn implements AutoCloseable {
+        private final ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        private final DatagramSocket udp = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+
+        StandIn() throws IOException {
+            Thread control = new Thread(this::acceptLoop, "socks-standin-tcp");
+            control.setDaemon(true);
+            control.start();
+            Thread echo = new Thread(this::echoLoop, "socks-standin-udp");
+            echo.setDaemon(true);
+            echo.start();
+        }
+
+        int port() {
+            return server.getLocalPort();
+        }
+
+        int udpPort() {
+            return udp.getLocalPort();
+        }
+
+        private void acceptLoop() {
+            while (!server.isClosed()) {
+                try {
+                    Socket socket = server.accept();
+                    Thread handler = new Thread(() -> handle(socket), "socks-standin-conn");
+                    handler.setDaemon(true);
+                    handler.start();
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        }
+
+        private void handle(Socket socket) {
+            try (Socket s = socket) {
+                InputStream in = s.getInputStream();
+                OutputStream out = s.getOutputStream();
+                byte[] request = new byte[3 + 10];
+                int read = 0;
+                while (read < request.length) {
+                    int n = in.read(request, read, request.length - read);
+                    if (n < 0) return;
+                    read += n;
+                }
+                int port = udpPort();
+                out.write(new byte[] {5, 0, 5, 0, 0, 1, 127, 0, 0, 1, (byte) (port >> 8), (byte) port});
+                out.flush();
+                // The association lasts as long as the control connection
+                while (in.read() >= 0) {
+                    // Nothing is expected here
+                }
+            } catch (IOException ignored) {
+            }
+        }
+
+        private void echoLoop() {
+            byte[] buffer = new byte[65535];
+            DatagramPacket datagram = new DatagramPacket(buffer, buffer.length);
+            while (!udp.isClosed()) {
+                try {
+                    datagram.setLength(buffer.length);
+                    udp.receive(datagram);
+                    udp.send(datagram);
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            server.close();
+            udp.close();
+        }
+    }
+}
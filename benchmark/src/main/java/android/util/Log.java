@@ -0,0 +1,32 @@
+package android.util;
+
+/**
+ * Minimal stand-in for the Android logger so the net package runs on a
+ * plain JVM. Only the overloads the net package calls are provided.
+ */
+public final class Log {
+
+    private Log() {}
+
+    public static int d(String tag, String msg) {
+        return 0;
+    }
+
+    public static int i(String tag, String msg) {
+        return 0;
+    }
+
+    public static int w(String tag, String msg) {
+        return 0;
+    }
+
+    public static int e(String tag, String msg) {
+        System.err.println(tag + ": " + msg);
+        return 0;
+    }
+
+    public static int e(String tag, String msg, Throwable tr) {
+        System.err.println(tag + ": " + msg + " (" + tr + ")");
+        return 0;
+    }
+}